@@ -20,15 +20,25 @@ import android.content.Context;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class processes the count for the most used apps and the most recent.
+ * <p>
+ * The run data of every tracked application lives in the columns of a {@link RunInfoStore},
+ * addressed by its {@link ComponentPool} id, and each app is kept in {@link RankingIndex}es by run count, by last
+ * execution and by {@link Frecency} score, which are updated in O(log n) on each change. Pinned, new and updated apps
+ * are also kept in a small index of their own by last execution.
+ * The most used view ranks by run count, or by frecency with {@link #setMostUsedOrder(int)}. The lists are named views, each
+ * defined by a {@link RankingPolicy} and built by a {@link RankingEngine} from a short prefix
+ * read of one of those indexes. Besides the built-in views, more can be added with
+ * {@link #addRankingPolicy(RankingPolicy)}.
+ * <p>
+ * The manager is changed by one thread at a time. Each ranking change publishes an immutable
+ * {@link RankingSnapshot}, which other threads read without locking.
  *
  * @author Tiago Costa
  */
@@ -36,12 +46,46 @@ public class ApplicationRunInfoManager {
 
     public static final int RECENT_APP_MAX_COUNT_LIMIT = 5;
     public static final int MOST_APP_MAX_COUNT_LIMIT = 5;
+    public static final int PINNED_APP_MAX_COUNT_LIMIT = 5;
+    public static final int NEW_APP_MAX_COUNT_LIMIT = 5;
     private static final int MINIMAL_COUNT = 2;
+    // the applications kept in the flagged index
+    private static final int FLAGS_FLAGGED = RunInfoStore.FLAG_PINNED_APP | RunInfoStore.FLAG_NEW_APP | RunInfoStore.FLAG_UPDATED_APP;
+    public static final long DEFAULT_FRECENCY_HALF_LIFE = ApplicationRunInformation.toMilliSeconds(7);
     private static final String TAG = ApplicationRunInfoManager.class.getSimpleName();
 
-    private LimitedQueue<ApplicationRunInformation> _mostUsed;
-    private LimitedQueue<ApplicationRunInformation> _recentApps;
-    private Map<String, ApplicationRunInformation> _appRunInfos;
+    public static final String VIEW_MOST_USED = "most_used";
+    public static final String VIEW_RECENT = "recent";
+    public static final String VIEW_PINNED = "pinned";
+    public static final String VIEW_NEW_OR_UPDATED = "new_or_updated";
+
+    // the views being ranked, only touched by the thread changing the model
+    private RankingEngine _engine = new RankingEngine();
+    private int _mostUsedOrder = RankingPolicy.ORDER_BY_COUNT;
+
+    // the lists as last published, read by any thread
+    private final AtomicReference<RankingSnapshot> _ranking = new AtomicReference<>(RankingSnapshot.EMPTY);
+    private long _rankingVersion;
+
+    private final ComponentPool _pool = ComponentPool.getInstance();
+    private final RunInfoStore _store = new RunInfoStore(_pool);
+    private final RankingIndex _byCount = new RankingIndex();
+    private final RankingIndex _byLastExecution = new RankingIndex();
+    private final RankingIndex _byFrecency = new RankingIndex();
+    // the few pinned, new or updated apps by last execution, walked by the flag views
+    private final RankingIndex _flaggedByLastExecution = new RankingIndex();
+    // by RankingPolicy order
+    private final RankingIndex[] _indexes = {_byCount, _byLastExecution, _byFrecency, _flaggedByLastExecution};
+    private long _frecencyHalfLife = DEFAULT_FRECENCY_HALF_LIFE;
+
+    // ids changed since the last collectChanges, as a bitset plus the list of set bits
+    private long[] _dirtyBits = new long[4];
+    private int[] _dirtyIds = new int[16];
+    private int _dirtyCount;
+
+    // time up to which usage events were folded into the model
+    private long _watermark = RunInfoJournal.NO_WATERMARK;
+    private boolean _watermarkDirty;
 
     private int _mostUsedAppsLimit;
     private int _recentAppsLimit;
@@ -49,12 +93,131 @@ public class ApplicationRunInfoManager {
 
     public ApplicationRunInfoManager(boolean updateLists) {
         this._updateLists = updateLists;
-        _appRunInfos = new HashMap<>();
         if (_updateLists) {
+            // the recent view ranks every app, a reader leaves out the most used ones it shows
+            _engine.addPolicy(new MostUsedPolicy());
+            _engine.addPolicy(new RecentPolicy());
+            _engine.addPolicy(new FlagPolicy(VIEW_PINNED, PINNED_APP_MAX_COUNT_LIMIT, RunInfoStore.FLAG_PINNED_APP));
+            _engine.addPolicy(new FlagPolicy(VIEW_NEW_OR_UPDATED, NEW_APP_MAX_COUNT_LIMIT,
+                    RunInfoStore.FLAG_NEW_APP | RunInfoStore.FLAG_UPDATED_APP));
             setUpLimits(MOST_APP_MAX_COUNT_LIMIT, RECENT_APP_MAX_COUNT_LIMIT);
         }
     }
 
+    private class MostUsedPolicy implements RankingPolicy {
+        @Override
+        public String getName() {
+            return VIEW_MOST_USED;
+        }
+
+        @Override
+        public int getOrder() {
+            return _mostUsedOrder;
+        }
+
+        @Override
+        public int getLimit() {
+            return _mostUsedAppsLimit;
+        }
+
+        @Override
+        public String[] getExcludedViews() {
+            return new String[0];
+        }
+
+        @Override
+        public int evaluate(ApplicationRunInformation app) {
+            if (app.getCount() >= MINIMAL_COUNT) {
+                return ACCEPT;
+            }
+            // by count the rest of the ranking is used even less, by frecency it may not be
+            return _mostUsedOrder == ORDER_BY_COUNT ? STOP : SKIP;
+        }
+    }
+
+    private class RecentPolicy implements RankingPolicy {
+        @Override
+        public String getName() {
+            return VIEW_RECENT;
+        }
+
+        @Override
+        public int getOrder() {
+            return ORDER_BY_LAST_EXECUTION;
+        }
+
+        @Override
+        public int getLimit() {
+            // enough for the recent limit once the most used apps shown with it are left out
+            return _recentAppsLimit + _mostUsedAppsLimit;
+        }
+
+        @Override
+        public String[] getExcludedViews() {
+            return new String[0];
+        }
+
+        @Override
+        public int evaluate(ApplicationRunInformation app) {
+            return ACCEPT;
+        }
+    }
+
+    /**
+     * The most recent applications having any of the flags, out of the flagged index.
+     */
+    private static class FlagPolicy implements RankingPolicy {
+        private final String _name;
+        private final int _limit;
+        private final int _flags;
+
+        FlagPolicy(String name, int limit, int flags) {
+            _name = name;
+            _limit = limit;
+            _flags = flags;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public int getOrder() {
+            return ORDER_FLAGGED_BY_LAST_EXECUTION;
+        }
+
+        @Override
+        public int getLimit() {
+            return _limit;
+        }
+
+        @Override
+        public String[] getExcludedViews() {
+            return new String[0];
+        }
+
+        @Override
+        public int evaluate(ApplicationRunInformation app) {
+            return (app.getFlags() & _flags) != 0 ? ACCEPT : SKIP;
+        }
+    }
+
+    /**
+     * Adds a view to the ranking, published in every {@link RankingSnapshot} under the name of
+     * the policy. Views of the same order are built in the same walk of the ranking.
+     *
+     * @throws IllegalArgumentException if the name is taken, or an excluded view is unknown or
+     *                                  built in a later walk
+     */
+    public void addRankingPolicy(RankingPolicy policy) {
+        if (!_updateLists) {
+            throw new IllegalStateException("This manager does not rank the applications");
+        }
+        _engine.addPolicy(policy);
+        updateAppInformation();
+    }
+
     public static ApplicationRunInformation generateApplicationRunInfo(ComponentName component, boolean isFreshInstall, boolean isUpdated) {
         ApplicationRunInformation appInfo = new ApplicationRunInformation(component);
         appInfo.incrementCount();
@@ -70,6 +233,64 @@ public class ApplicationRunInfoManager {
         return generateApplicationRunInfo(component, isFreshInstall, false);
     }
 
+    /**
+     * Ranks the most used view by lifetime run count or by time-decayed launch score.
+     *
+     * @param order {@link RankingPolicy#ORDER_BY_COUNT} or {@link RankingPolicy#ORDER_BY_FRECENCY}
+     * @throws IllegalArgumentException if the order is neither, or an added view cannot be
+     *                                  built in the new sequence of walks
+     */
+    public void setMostUsedOrder(int order) {
+        if (order != RankingPolicy.ORDER_BY_COUNT && order != RankingPolicy.ORDER_BY_FRECENCY) {
+            throw new IllegalArgumentException("Invalid order for the most used apps: " + order);
+        }
+        if (order == _mostUsedOrder) {
+            return;
+        }
+
+        int previousOrder = _mostUsedOrder;
+        _mostUsedOrder = order;
+        // the engine plans its walks from the orders of the views as they are added
+        RankingEngine engine = new RankingEngine();
+        try {
+            for (int view = 0; view < _engine.getViewCount(); view++) {
+                engine.addPolicy(_engine.getPolicy(view));
+            }
+        } catch (IllegalArgumentException e) {
+            _mostUsedOrder = previousOrder;
+            throw e;
+        }
+        _engine = engine;
+
+        updateAppInformation();
+    }
+
+    public int getMostUsedOrder() {
+        return _mostUsedOrder;
+    }
+
+    /**
+     * Sets the time after which a launch weighs half as much in the frecency order. The
+     * scores are kept as of each app's last execution, so they are only ranked again, not
+     * recomputed.
+     */
+    public void setFrecencyHalfLife(long halfLifeMillis) {
+        if (halfLifeMillis <= 0) {
+            throw new IllegalArgumentException("Invalid half-life: " + halfLifeMillis);
+        }
+        if (halfLifeMillis == _frecencyHalfLife) {
+            return;
+        }
+
+        _frecencyHalfLife = halfLifeMillis;
+        for (int id = 0; id < _store.capacity(); id++) {
+            if (_store.contains(id)) {
+                _byFrecency.put(id, Frecency.key(_store.getScore(id), _store.getLastExecution(id), _frecencyHalfLife));
+            }
+        }
+        updateAppInformation();
+    }
+
     public void setUpLimits(int maxMostUsed, int maxRecentApps) {
         _mostUsedAppsLimit = maxMostUsed;
         _recentAppsLimit = maxRecentApps;
@@ -79,13 +300,8 @@ public class ApplicationRunInfoManager {
     }
 
     private void setUpNewLimits() {
-        _mostUsed = new LimitedQueue<>(_mostUsedAppsLimit);
-        _recentApps = new LimitedQueue<>(_recentAppsLimit);
-
         // update the information
-        if (_appRunInfos != null) {
-            updateAppInformation();
-        }
+        updateAppInformation();
     }
 
     public void loadNewRunInformation(List<ApplicationRunInformation> allApps) {
@@ -94,7 +310,7 @@ public class ApplicationRunInfoManager {
 
         // add application to the bag
         for (ApplicationRunInformation appInfo : allApps) {
-            _appRunInfos.put(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()), appInfo);
+            track(appInfo);
         }
 
         // update the information
@@ -103,112 +319,161 @@ public class ApplicationRunInfoManager {
 
     public void resetState() {
         if (_updateLists) {
-            _mostUsed.clear();
-            _recentApps.clear();
+            _engine.clear();
+            publishRanking();
+        }
+        // everything not added back before the next collectChanges becomes a tombstone
+        for (int id = 0; id < _store.capacity(); id++) {
+            if (_store.contains(id)) {
+                markDirty(id);
+            }
         }
-        _appRunInfos.clear();
+        _store.clear();
+        _byCount.clear();
+        _byLastExecution.clear();
+        _byFrecency.clear();
+        _flaggedByLastExecution.clear();
     }
 
     public void applicationStarted(ApplicationRunInformation appInfo) {
         // obtain the cached app information
-        ApplicationRunInformation cachedApp = _appRunInfos.get(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()));
+        int id = findId(appInfo);
         // if does not exist, create one
-        if (cachedApp == null) {
+        if (id == RunInfoStore.NONE) {
             Log.d(TAG, "No entry yet");
-            _appRunInfos.put(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()), appInfo);
-
-            cachedApp = appInfo;
-
-            cachedApp.resetCount();
+            id = addApp(appInfo.getComponentId());
         }
 
         // increment count
-        cachedApp.incrementCount();
+        _store.setCount(id, _store.getCount(id) + 1);
 
-        Log.d(TAG, "Logging application : " + cachedApp.getComponentName() + " : " + cachedApp.getCount());
+        Log.d(TAG, "Logging application : " + appInfo.getComponentName() + " : " + _store.getCount(id));
 
         // set the current time for the last execution
-        cachedApp.setLastExecution(appInfo.getLastExecution());
+        addLaunches(id, 1, appInfo.getLastExecutionMillis());
+        setLastExecution(id, appInfo.getLastExecutionMillis());
 
-        cachedApp.setIsNewApp(false);
-        cachedApp.setIsUpdatedApp(false);
-        cachedApp.setIsPinnedApp(appInfo.isPinnedApp());
+        int flags = _store.getFlags(id) & ~(RunInfoStore.FLAG_NEW_APP | RunInfoStore.FLAG_UPDATED_APP | RunInfoStore.FLAG_PINNED_APP);
+        if (appInfo.isPinnedApp()) {
+            flags |= RunInfoStore.FLAG_PINNED_APP;
+        }
+        _store.setFlags(id, flags);
 
         // update the informations
+        reindex(id);
         updateAppInformation();
     }
 
+    /**
+     * Folds launches read from the usage events or drained from a {@link LaunchAccumulator}
+     * into the model. The lists are not refreshed, call {@link #setUsageEventsWatermark(long)}
+     * or {@link #refreshRanking()} once the whole batch is folded in.
+     */
+    public void applicationLaunched(int componentId, int launches, long lastExecution) {
+        int id = _store.contains(componentId) ? componentId : addApp(componentId);
+
+        _store.setCount(id, _store.getCount(id) + launches);
+        addLaunches(id, launches, lastExecution);
+
+        int flags = _store.getFlags(id) & ~(RunInfoStore.FLAG_NEW_APP | RunInfoStore.FLAG_UPDATED_APP);
+        _store.setFlags(id, flags);
+
+        reindex(id);
+    }
+
+    /**
+     * Records the time up to which usage events are folded into the model, it is persisted
+     * with the changes, and refreshes the lists.
+     */
+    public void setUsageEventsWatermark(long watermark) {
+        if (watermark != _watermark) {
+            _watermark = watermark;
+            _watermarkDirty = true;
+        }
+        updateAppInformation();
+    }
+
+    /**
+     * Refreshes the lists after a batch of {@link #applicationLaunched(int, int, long)}.
+     */
+    public void refreshRanking() {
+        updateAppInformation();
+    }
+
+    public long getUsageEventsWatermark() {
+        return _watermark;
+    }
+
     public boolean applicationPinned(ApplicationRunInformation appInfo) {
         // obtain the cached app information
-        ApplicationRunInformation cachedApp = _appRunInfos.get(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()));
+        int id = findId(appInfo);
         // if does not exist, create one
-        if (cachedApp == null) {
-            _appRunInfos.put(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()), appInfo);
-
-            cachedApp = appInfo;
-            cachedApp.setIsPinnedApp(false);
-            cachedApp.setIsNewApp(false);
-            cachedApp.setIsUpdatedApp(false);
-            cachedApp.resetCount();
+        if (id == RunInfoStore.NONE) {
+            id = addApp(appInfo);
         }
-        cachedApp.setIsPinnedApp(!cachedApp.isPinnedApp());
-        return cachedApp.isPinnedApp();
+        int flags = _store.getFlags(id) ^ RunInfoStore.FLAG_PINNED_APP;
+        _store.setFlags(id, flags);
+        reindex(id);
+        // the flags decide the pinned view
+        updateAppInformation();
+        return (flags & RunInfoStore.FLAG_PINNED_APP) != 0;
     }
 
     public void applicationInstalled(ApplicationRunInformation appInfo) {
         // obtain the cached app information
-        ApplicationRunInformation cachedApp = _appRunInfos.get(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()));
+        int id = findId(appInfo);
         // if does not exist, create one
-        if (cachedApp == null) {
-            _appRunInfos.put(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()), appInfo);
-
-            cachedApp = appInfo;
-
-            cachedApp.resetCount();
+        if (id == RunInfoStore.NONE) {
+            id = addApp(appInfo);
         }
 
-        Log.d(TAG, "Logging application : " + cachedApp.getComponentName() + " : " + cachedApp.getCount());
+        Log.d(TAG, "Logging application : " + appInfo.getComponentName() + " : " + _store.getCount(id));
 
         // set the current time for the last execution
-        cachedApp.setLastExecution(appInfo.getLastExecution());
+        setLastExecution(id, appInfo.getLastExecutionMillis());
 
-        cachedApp.setIsNewApp(true);
-        cachedApp.setIsUpdatedApp(false);
-        cachedApp.setIsPinnedApp(false);
+        int flags = _store.getFlags(id) & ~(RunInfoStore.FLAG_UPDATED_APP | RunInfoStore.FLAG_PINNED_APP);
+        _store.setFlags(id, flags | RunInfoStore.FLAG_NEW_APP);
+
+        reindex(id);
+        updateAppInformation();
     }
 
     public void applicationUpdated(ApplicationRunInformation appInfo) {
         // obtain the cached app information
-        ApplicationRunInformation cachedApp = _appRunInfos.get(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()));
+        int id = findId(appInfo);
         // if does not exist, create one
-        if (cachedApp == null) {
-            _appRunInfos.put(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()), appInfo);
-
-            cachedApp = appInfo;
-
-            cachedApp.resetCount();
+        if (id == RunInfoStore.NONE) {
+            id = addApp(appInfo);
         }
 
-        Log.d(TAG, "Logging application : " + cachedApp.getComponentName() + " : " + cachedApp.getCount());
-        cachedApp.setIsNewApp(false);
-        cachedApp.setIsUpdatedApp(true);
+        Log.d(TAG, "Logging application : " + appInfo.getComponentName() + " : " + _store.getCount(id));
+        int flags = _store.getFlags(id) & ~RunInfoStore.FLAG_NEW_APP;
+        _store.setFlags(id, flags | RunInfoStore.FLAG_UPDATED_APP);
+        reindex(id);
+        updateAppInformation();
     }
 
     public ApplicationRunInformation getApplicationRunInformation(Context context, ComponentName componentName) {
         // obtain the cached app information
-        ApplicationRunInformation cachedApp = _appRunInfos.get(ApplicationRunInformation.serializeComponentName(componentName));
-        //update age
-        if (cachedApp != null) {
-            updateAgeInfo(context, cachedApp);
+        int id = findId(componentName);
+        if (id == RunInfoStore.NONE) {
+            return null;
         }
 
+        //update age
+        ApplicationRunInformation cachedApp = _store.view(id);
+        updateAgeInfo(context, cachedApp);
+
         return cachedApp;
     }
 
     private static void updateAgeInfo(Context context, ApplicationRunInformation appRunInfo) {
         if (appRunInfo != null) {
-            Date now = Calendar.getInstance().getTime();
-            long timePastSinceLastExec = now.getTime() - appRunInfo.getLastExecution().getTime();
+            long lastExecution = appRunInfo.getLastExecutionMillis();
+            // an app never run is as old as it gets
+            long timePastSinceLastExec = lastExecution == RunInfoStore.NO_EXECUTION
+                    ? Long.MAX_VALUE : System.currentTimeMillis() - lastExecution;
             boolean isPinned = appRunInfo.isPinnedApp();
 
             if (timePastSinceLastExec < ApplicationRunInformation.getAgeLevelInMiliseconds(context, ApplicationRunInformation.APP_AGE.FREQUENT_USE) || isPinned) {
@@ -220,133 +485,200 @@ public class ApplicationRunInfoManager {
     }
 
     public void applicationRemoved(ComponentName component) {
-        // remove data
-        ApplicationRunInformation appInfo = _appRunInfos.remove(ApplicationRunInformation.serializeComponentName(component));
+        int id = findId(component);
 
         // if does not exist return
-        if (appInfo == null) {
+        if (id == RunInfoStore.NONE) {
             return;
         }
 
+        // check the membership before the rankings forget about it
+        boolean wasListed = _updateLists && _engine.isListed(id);
+
+        // remove data
+        _byCount.remove(id);
+        _byLastExecution.remove(id);
+        _byFrecency.remove(id);
+        _flaggedByLastExecution.remove(id);
+        _store.remove(id);
+        markDirty(id);
+
         // if its being used in the lists refactor the lists
-        if (_updateLists) {
-            if (_mostUsed.contains(appInfo) || _recentApps.contains(appInfo)) {
-                updateAppInformation();
-            }
+        if (wasListed) {
+            updateAppInformation();
         }
     }
 
-    private void updateAppInformation() {
-        if (_updateLists) {
-            _mostUsed.clear();
-            _recentApps.clear();
-
-            // most used
-            // calculate the most used
-            for (ApplicationRunInformation current : _appRunInfos.values()) {
+    private int findId(ComponentName component) {
+        int id = _pool.find(component);
+        return _store.contains(id) ? id : RunInfoStore.NONE;
+    }
 
-                if (current.getCount() >= MINIMAL_COUNT) {
-                    addByCount(current, _mostUsed, _mostUsedAppsLimit);
-                }
-            }
+    private int findId(ApplicationRunInformation appInfo) {
+        int id = appInfo.getComponentId();
+        return _store.contains(id) ? id : RunInfoStore.NONE;
+    }
 
-            printMostUsedApps();
+    private int addApp(int id) {
+        _store.add(id);
+        reindex(id);
+        return id;
+    }
 
-            // calculate the most recent
-            for (ApplicationRunInformation current : _appRunInfos.values()) {
-                if (!_mostUsed.contains(current)) {
-                    addByDate(current, _recentApps, _recentAppsLimit);
-                }
-            }
+    /**
+     * Adds a slot for a record missing from the model, run last at the time of the record.
+     */
+    private int addApp(ApplicationRunInformation appInfo) {
+        int id = appInfo.getComponentId();
+        _store.add(id);
+        _store.setLastExecution(id, appInfo.getLastExecutionMillis());
+        reindex(id);
+        return id;
+    }
 
-            printRecentApps();
+    /**
+     * Copies a detached record into the store, replacing any previous entry for the same component.
+     */
+    private void track(ApplicationRunInformation appInfo) {
+        int id = findId(appInfo);
+        if (id == RunInfoStore.NONE) {
+            id = addApp(appInfo.getComponentId());
         }
+
+        _store.setCount(id, appInfo.getCount());
+        _store.setLastExecution(id, appInfo.getLastExecutionMillis());
+        _store.setFlags(id, appInfo.getFlags());
+        // records read from the usage stats have no score yet
+        double score = appInfo.getScore();
+        _store.setScore(id, score == Frecency.NO_SCORE ? Frecency.seed(appInfo.getCount()) : score);
+        reindex(id);
     }
 
-    private void printRecentApps() {
-        for (ApplicationRunInformation current : _recentApps) {
-            Log.d(TAG, "Fairphone RecentApps - " + current);
+    /**
+     * Folds launches into the score, moving the last execution forward to them.
+     */
+    private void addLaunches(int id, int launches, long time) {
+        long lastExecution = _store.getLastExecution(id);
+        _store.setScore(id, Frecency.launched(_store.getScore(id), lastExecution, launches, time, _frecencyHalfLife));
+        if (time > lastExecution) {
+            _store.setLastExecution(id, time);
         }
     }
 
-    private void printMostUsedApps() {
-        for (ApplicationRunInformation current : _mostUsed) {
-            Log.d(TAG, "Fairphone MostUsed - " + current);
-        }
+    // the score is kept as of the last execution, it moves with it
+    private void setLastExecution(int id, long lastExecution) {
+        _store.setScore(id, Frecency.rebase(_store.getScore(id), _store.getLastExecution(id), lastExecution, _frecencyHalfLife));
+        _store.setLastExecution(id, lastExecution);
     }
 
-    private static void addByDate(ApplicationRunInformation info, LimitedQueue<ApplicationRunInformation> queue, int limit) {
-        for (int insertIdx = 0; insertIdx < queue.size(); insertIdx++) {
-            if (queue.get(insertIdx).getLastExecution().before(info.getLastExecution())) {
-                queue.add(insertIdx, info);
+    private void reindex(int id) {
+        _byCount.put(id, _store.getCount(id));
+        _byLastExecution.put(id, _store.getLastExecution(id));
+        _byFrecency.put(id, Frecency.key(_store.getScore(id), _store.getLastExecution(id), _frecencyHalfLife));
+        if ((_store.getFlags(id) & FLAGS_FLAGGED) != 0) {
+            _flaggedByLastExecution.put(id, _store.getLastExecution(id));
+        } else {
+            _flaggedByLastExecution.remove(id);
+        }
+        markDirty(id);
+    }
 
-                return;
-            }
+    private void markDirty(int id) {
+        int word = id >>> 6;
+        if (word >= _dirtyBits.length) {
+            _dirtyBits = Arrays.copyOf(_dirtyBits, Math.max(word + 1, _dirtyBits.length * 2));
+        }
+        long bit = 1L << id;
+        if ((_dirtyBits[word] & bit) != 0) {
+            return;
         }
+        _dirtyBits[word] |= bit;
 
-        if (queue.size() < limit) {
-            queue.addLast(info);
+        if (_dirtyCount == _dirtyIds.length) {
+            _dirtyIds = Arrays.copyOf(_dirtyIds, _dirtyIds.length * 2);
         }
+        _dirtyIds[_dirtyCount++] = id;
     }
 
-    private static void addByCount(ApplicationRunInformation info, LimitedQueue<ApplicationRunInformation> queue, int limit) {
-        for (int insertIdx = 0; insertIdx < queue.size(); insertIdx++) {
-            Log.d(TAG, "Fairphone - Contacting ... " + queue.get(insertIdx));
-            if (info.getCount() > queue.get(insertIdx).getCount()) {
-                Log.d(TAG, "FairPhone - Qs : " + queue.size() + " : Most Used : Adding " + info.getComponentName() + " to position " + insertIdx);
-                queue.add(insertIdx, info);
-
-                return;
+    /**
+     * Moves every change since the last call into the delta: the current state of each
+     * started, pinned, installed or updated application and a tombstone for each removed one.
+     * Costs O(changes), not O(tracked applications).
+     */
+    public void collectChanges(RunInfoDelta delta) {
+        for (int i = 0; i < _dirtyCount; i++) {
+            int id = _dirtyIds[i];
+            _dirtyBits[id >>> 6] &= ~(1L << id);
+
+            if (_store.contains(id)) {
+                delta.put(id, _store.getCount(id), _store.getLastExecution(id), _store.getFlags(id), _store.getScore(id));
+            } else {
+                delta.remove(id);
             }
         }
+        _dirtyCount = 0;
 
-        Log.d(TAG, "Fairphone - Qs : " + queue.size() + " : Most Used : Adding " + info.getComponentName() + " to first position ");
-        if (queue.size() < limit) {
-            queue.addLast(info);
+        if (_watermarkDirty) {
+            delta.setWatermark(_watermark);
+            _watermarkDirty = false;
         }
     }
 
-    private static class LimitedQueue<E> extends LinkedList<E> {
+    public boolean hasChanges() {
+        return _dirtyCount > 0 || _watermarkDirty;
+    }
 
-        /**
-         *
-         */
-        private static final long serialVersionUID = 8174761694444365605L;
-        private final int limit;
+    private void updateAppInformation() {
+        if (_updateLists) {
+            // one walk of each ranking feeds all of its views
+            _engine.rank(_store, _indexes);
 
-        public LimitedQueue(int limit) {
-            this.limit = limit;
+            publishRanking();
+            printMostUsedApps();
+            printRecentApps();
         }
+    }
 
-        @Override
-        public void add(int idx, E o) {
-            super.add(idx, o);
+    private void publishRanking() {
+        _ranking.set(RankingSnapshot.of(++_rankingVersion, _store, _engine));
+    }
 
-            while (size() > limit) {
-                super.removeLast();
-            }
+    private void printRecentApps() {
+        for (ApplicationRunInformation current : _ranking.get().getRecentApps()) {
+            Log.d(TAG, "Fairphone RecentApps - " + current);
         }
+    }
 
-        @Override
-        public boolean add(E o) {
-            super.addLast(o);
-            while (size() > limit) {
-                super.removeLast();
-            }
-            return true;
+    private void printMostUsedApps() {
+        for (ApplicationRunInformation current : _ranking.get().getMostUsedApps()) {
+            Log.d(TAG, "Fairphone MostUsed - " + current);
         }
     }
 
-    public List<ApplicationRunInformation> getRecentApps() {
+    /**
+     * @return the lists as of the last ranking change; safe to read from any thread, without a lock
+     */
+    public RankingSnapshot getRankingSnapshot() {
+        return _ranking.get();
+    }
 
-        Log.d(TAG, "Fairphone - Getting recent apps... " + _recentApps.size());
-        return _recentApps;
+    /**
+     * @return the recent apps of the {@link #getRankingSnapshot() last snapshot}, an immutable list; the
+     * most used apps are ranked too, past the recent limit by as many as the most used limit
+     */
+    public List<ApplicationRunInformation> getRecentApps() {
+        List<ApplicationRunInformation> recentApps = _ranking.get().getRecentApps();
+        Log.d(TAG, "Fairphone - Getting recent apps... " + recentApps.size());
+        return recentApps;
     }
 
+    /**
+     * @return the most used apps of the {@link #getRankingSnapshot() last snapshot}, an immutable list
+     */
     public List<ApplicationRunInformation> getMostUsedApps() {
-        Log.d(TAG, "Fairphone - Getting most Used apps... " + _mostUsed.size());
-
-        return _mostUsed;
+        List<ApplicationRunInformation> mostUsed = _ranking.get().getMostUsedApps();
+        Log.d(TAG, "Fairphone - Getting most Used apps... " + mostUsed.size());
+        return mostUsed;
     }
 
     public int getMostUsedAppsLimit() {
@@ -358,7 +690,13 @@ public class ApplicationRunInfoManager {
     }
 
     public List<ApplicationRunInformation> getAllAppRunInfo() {
-        return new ArrayList<>(_appRunInfos.values());
+        List<ApplicationRunInformation> allApps = new ArrayList<>(_store.size());
+        for (int id = 0; id < _store.capacity(); id++) {
+            if (_store.contains(id)) {
+                allApps.add(_store.view(id));
+            }
+        }
+        return allApps;
     }
 
     public void setAllRunInfo(List<ApplicationRunInformation> allApps) {
@@ -367,7 +705,7 @@ public class ApplicationRunInfoManager {
         }
 
         for (ApplicationRunInformation app : allApps) {
-            _appRunInfos.put(ApplicationRunInformation.serializeComponentName(app.getComponentName()), app);
+            track(app);
         }
 
         updateAppInformation();
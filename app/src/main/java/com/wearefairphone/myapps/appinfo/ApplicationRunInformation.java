@@ -19,12 +19,13 @@ import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import com.wearefairphone.myapps.R;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +33,12 @@ import java.util.Map;
  * Represents the run data for a specific application in the system.
  * It contains data for fast access like the component name and the icon.
  * All the info can still be obtained via the Application info.
+ * <p>
+ * Instances are either detached records, used to hand data in and out of the
+ * {@link ApplicationRunInfoManager}, or lightweight views over a slot of its {@link RunInfoStore}.
+ * Views are read only: the rankings of the manager follow the store, so every change goes
+ * through the manager. Records published in a {@link RankingSnapshot} are frozen, as any
+ * thread may read them.
  */
 public class ApplicationRunInformation {
     private static final int APP_RARE_USE_DAYS = 365;
@@ -39,23 +46,28 @@ public class ApplicationRunInformation {
     private static final String TAG = ApplicationRunInformation.class.getSimpleName();
     private static final String APP_LIFECYCLE_PREFERENCES = "APP_LIFECYCLE_PREFERENCES";
     private static final String APP_AGE_LIMIT_IN_DAYS = "APP_AGE_LIMIT_IN_DAYS";
-    private static final String APP_RUN_INFO_SEPARATOR = ";";
-    private static final String COMPONENT_NAME_SEPARATOR = ";";
+    private static final String FRECENCY_HALF_LIFE_IN_DAYS = "FRECENCY_HALF_LIFE_IN_DAYS";
+    private static final String MOST_USED_BY_FRECENCY = "MOST_USED_BY_FRECENCY";
 
     private static final long HOURS_IN_A_DAY = 24L;
     private static final long MINUTES_IN_HOUR = 60L;
     private static final long SECONDS_IN_MINUTE = 60L;
     private static final long MILLIS_IN_SECOND = 1000L;
 
-    private boolean mIsNewApp;
-    private boolean mIsPinnedApp;
-    private boolean mIsUpdatedApp;
+    private static final Map<String, RunInfoJournal> sJournals = new HashMap<>();
 
-    private int mRunCount;
+    // set when this object is a view over a slot of a RunInfoStore
+    private RunInfoStore mStore;
+    private int mId = RunInfoStore.NONE;
 
-    private ComponentName mComponentName;
-    private Date mLastExecution;
-    private APP_AGE mAppAge;
+    // own values of a detached record
+    private int mComponentId = ComponentPool.NONE;
+    private int mRunCount;
+    private long mLastExecution = RunInfoStore.NO_EXECUTION;
+    private double mScore = Frecency.NO_SCORE;
+    private int mFlags;
+    // set once a detached record is shared, it no longer changes
+    private boolean mFrozen;
 
     /**
      * Create a base count zero Application Run information.
@@ -78,7 +90,7 @@ public class ApplicationRunInformation {
             throw new IllegalArgumentException("Invalid value for ComponentName");
         }
 
-        setComponentName(component);
+        setComponentId(ComponentPool.getInstance().intern(component));
 
         if (count < 0) {
             throw new IllegalArgumentException("Run count cannot be negative");
@@ -87,45 +99,187 @@ public class ApplicationRunInformation {
         mRunCount = count;
     }
 
+    /**
+     * Create a application run information for an already interned component.
+     *
+     * @param componentId the {@link ComponentPool} id of the application
+     * @param count       the number of run times (used when starting)
+     */
+    public ApplicationRunInformation(int componentId, int count) {
+        if (componentId < 0 || componentId >= ComponentPool.getInstance().size()) {
+            throw new IllegalArgumentException("Invalid value for component id");
+        }
+
+        setComponentId(componentId);
+
+        if (count < 0) {
+            throw new IllegalArgumentException("Run count cannot be negative");
+        }
+
+        mRunCount = count;
+    }
+
+    /**
+     * Create a view over a slot of the store, all accessors read and write the store columns.
+     */
+    ApplicationRunInformation(RunInfoStore store, int id) {
+        mStore = store;
+        mId = id;
+    }
+
+    /**
+     * Points this view at another slot of its store, so one view can walk many slots.
+     */
+    void moveTo(int id) {
+        mId = id;
+    }
+
+    /**
+     * Copies the slot values into this object and stops reading the store,
+     * used when the slot is about to be freed.
+     */
+    void detach() {
+        if (mStore == null) {
+            return;
+        }
+        mComponentId = mId;
+        mRunCount = mStore.getCount(mId);
+        mLastExecution = mStore.getLastExecution(mId);
+        mScore = mStore.getScore(mId);
+        mFlags = mStore.getFlags(mId) & ~RunInfoStore.FLAG_PRESENT;
+        mStore = null;
+        mId = RunInfoStore.NONE;
+    }
+
     public int getCount() {
-        return mRunCount;
+        return mStore != null ? mStore.getCount(mId) : mRunCount;
+    }
+
+    private void setCount(int count) {
+        if (mStore != null) {
+            mStore.setCount(mId, count);
+        } else {
+            mRunCount = count;
+        }
     }
 
     public void incrementCount() {
-        mRunCount++;
+        checkDetached();
+        setCount(getCount() + 1);
     }
 
     public void decrementCount() {
-        if (mRunCount > 0) {
-            mRunCount--;
+        checkDetached();
+        int count = getCount();
+        if (count > 0) {
+            setCount(count - 1);
         }
     }
 
     public ComponentName getComponentName() {
-        return mComponentName;
+        return ComponentPool.getInstance().getComponentName(getComponentId());
     }
 
-    private void setComponentName(ComponentName component) {
-        this.mComponentName = new ComponentName(component.getPackageName(), component.getClassName());
+    /**
+     * @return the {@link ComponentPool} id of the application
+     */
+    public int getComponentId() {
+        return mStore != null ? mId : mComponentId;
+    }
+
+    private void setComponentId(int componentId) {
+        this.mComponentId = componentId;
     }
 
     public Date getLastExecution() {
-        return mLastExecution;
+        long lastExecution = getLastExecutionMillis();
+        return lastExecution == RunInfoStore.NO_EXECUTION ? null : new Date(lastExecution);
+    }
+
+    /**
+     * @return the last execution in epoch milliseconds, without allocating a {@link Date}
+     */
+    public long getLastExecutionMillis() {
+        return mStore != null ? mStore.getLastExecution(mId) : mLastExecution;
     }
 
     public void setLastExecution(Date lastExecution) {
-        this.mLastExecution = lastExecution;
+        checkDetached();
+        setLastExecutionMillis(lastExecution == null ? RunInfoStore.NO_EXECUTION : lastExecution.getTime());
+    }
+
+    void setLastExecutionMillis(long lastExecution) {
+        if (mStore != null) {
+            mStore.setLastExecution(mId, lastExecution);
+        } else {
+            mLastExecution = lastExecution;
+        }
+    }
+
+    /**
+     * @return the {@link Frecency} score as of the last execution
+     */
+    double getScore() {
+        return mStore != null ? mStore.getScore(mId) : mScore;
+    }
+
+    void setScore(double score) {
+        if (mStore != null) {
+            mStore.setScore(mId, score);
+        } else {
+            mScore = score;
+        }
+    }
+
+    int getFlags() {
+        return mStore != null ? mStore.getFlags(mId) & ~RunInfoStore.FLAG_PRESENT : mFlags;
+    }
+
+    void setFlags(int flags) {
+        if (mStore != null) {
+            mStore.setFlags(mId, flags);
+        } else {
+            mFlags = flags;
+        }
+    }
+
+    /**
+     * Makes the public setters of this detached record throw from now on.
+     */
+    void freeze() {
+        mFrozen = true;
+    }
+
+    /**
+     * @throws IllegalStateException if this object is a view of the model or a frozen record
+     */
+    private void checkDetached() {
+        if (mStore != null) {
+            throw new IllegalStateException("Applications of the model only change through the manager");
+        }
+        if (mFrozen) {
+            throw new IllegalStateException("Applications of a ranking snapshot never change");
+        }
+    }
+
+    private boolean hasFlag(int flag) {
+        return (getFlags() & flag) != 0;
+    }
+
+    private void setFlag(int flag, boolean value) {
+        int flags = getFlags();
+        setFlags(value ? flags | flag : flags & ~flag);
     }
 
     @Override
     public int hashCode() {
         final int prime = 31;
+        long lastExecution = getLastExecutionMillis();
         int result = 1;
+        result = prime * result + getComponentId();
         result = prime * result
-                + ((mComponentName == null) ? 0 : mComponentName.hashCode());
-        result = prime * result
-                + ((mLastExecution == null) ? 0 : mLastExecution.hashCode());
-        result = prime * result + mRunCount;
+                + ((lastExecution == RunInfoStore.NO_EXECUTION) ? 0 : (int) (lastExecution ^ (lastExecution >>> 32)));
+        result = prime * result + getCount();
         return result;
     }
 
@@ -141,145 +295,120 @@ public class ApplicationRunInformation {
             return false;
         }
         ApplicationRunInformation other = (ApplicationRunInformation) obj;
-        if (mComponentName == null) {
-            if (other.mComponentName != null) {
-                return false;
-            }
-        } else if (!mComponentName.equals(other.mComponentName)) {
+        if (getComponentId() != other.getComponentId()) {
             return false;
         }
-        if (mLastExecution == null) {
-            if (other.mLastExecution != null) {
-                return false;
-            }
-        } else if (!mLastExecution.equals(other.mLastExecution)) {
+        if (getLastExecutionMillis() != other.getLastExecutionMillis()) {
             return false;
         }
-        return mRunCount == other.mRunCount;
+        return getCount() == other.getCount();
     }
 
     public void resetCount() {
-        mRunCount = 0;
-    }
-
-    /**
-     * Serializes a component in order to be used has a map key
-     *
-     * @param componentName component to serialize
-     * @return the serialized component
-     */
-    public static String serializeComponentName(ComponentName componentName) {
-        StringBuffer sb = new StringBuffer();
-
-        sb.append(componentName.getPackageName()).append(COMPONENT_NAME_SEPARATOR).append(componentName.getClassName());
-
-        return sb.toString();
-    }
-
-    /**
-     * Transforms a string into a ComponentName
-     *
-     * @param componentNameString serialized component
-     * @return the ComponentName object
-     */
-    public static ComponentName deserializeComponentName(String componentNameString) {
-        String[] strings = componentNameString.split(COMPONENT_NAME_SEPARATOR);
-
-        return strings.length == 2 ? new ComponentName(strings[0], strings[1]) : null;
+        checkDetached();
+        setCount(0);
     }
 
     public boolean isNewApp() {
-        return mIsNewApp;
+        return hasFlag(RunInfoStore.FLAG_NEW_APP);
     }
 
     public void setIsNewApp(boolean isNewApp) {
-        this.mIsNewApp = isNewApp;
+        checkDetached();
+        setFlag(RunInfoStore.FLAG_NEW_APP, isNewApp);
     }
 
     public boolean isUpdatedApp() {
-        return mIsUpdatedApp;
+        return hasFlag(RunInfoStore.FLAG_UPDATED_APP);
     }
 
     public void setIsUpdatedApp(boolean isUpdatedApp) {
-        this.mIsUpdatedApp = isUpdatedApp;
+        checkDetached();
+        setFlag(RunInfoStore.FLAG_UPDATED_APP, isUpdatedApp);
     }
 
     public boolean isPinnedApp() {
-        return mIsPinnedApp;
+        return hasFlag(RunInfoStore.FLAG_PINNED_APP);
     }
 
     public void setIsPinnedApp(boolean isPinnedApp) {
-        this.mIsPinnedApp = isPinnedApp;
+        checkDetached();
+        setFlag(RunInfoStore.FLAG_PINNED_APP, isPinnedApp);
     }
 
     public static void persistAppRunInfo(Context context, String preferencesKey, List<ApplicationRunInformation> appsToSave) {
-        SharedPreferences prefs = context.getSharedPreferences(preferencesKey, 0);
+        // only the records that changed since the last save are appended
+        getJournal(context, preferencesKey).save(appsToSave);
+    }
+
+    /**
+     * Persists only the given changes, see {@link ApplicationRunInfoManager#collectChanges(RunInfoDelta)}.
+     */
+    public static void persistAppRunInfoChanges(Context context, String preferencesKey, RunInfoDelta changes) {
+        getJournal(context, preferencesKey).save(changes);
+    }
 
-        // get the current prefs and clear to update
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.clear();
+    /**
+     * @return the time up to which usage events were folded into the persisted run information,
+     * or {@link RunInfoJournal#NO_WATERMARK} if they never were
+     */
+    public static long loadUsageEventsWatermark(Context context, String preferencesKey) {
+        return getJournal(context, preferencesKey).getWatermark();
+    }
 
-        for (ApplicationRunInformation appInfo : appsToSave) {
-            String appSerialized = ApplicationRunInformation.serializeApplicationRunInformation(appInfo);
+    public static List<ApplicationRunInformation> loadAppRunInfo(Context context, String preferencesKey) {
+        return getJournal(context, preferencesKey).load();
+    }
 
-            editor.putString(ApplicationRunInformation.serializeComponentName(appInfo.getComponentName()), appSerialized);
+    private static RunInfoJournal getJournal(Context context, String preferencesKey) {
+        synchronized (sJournals) {
+            RunInfoJournal journal = sJournals.get(preferencesKey);
+            if (journal == null) {
+                journal = new RunInfoJournal(context.getFilesDir(), preferencesKey);
+                if (journal.isEmpty()) {
+                    migrateLegacyAppRunInfo(context, preferencesKey, journal);
+                }
+                sJournals.put(preferencesKey, journal);
+            }
+            return journal;
         }
-
-        editor.apply();
     }
 
-    public static List<ApplicationRunInformation> loadAppRunInfo(Context context, String preferencesKey) {
+    /**
+     * Moves data saved by older versions in the shared preferences into the journal.
+     */
+    private static void migrateLegacyAppRunInfo(Context context, String preferencesKey, RunInfoJournal journal) {
         SharedPreferences prefs = context.getSharedPreferences(preferencesKey, 0);
+        if (prefs.getAll().isEmpty()) {
+            return;
+        }
 
         List<ApplicationRunInformation> allApps = new ArrayList<>();
+        RunInfoCodec codec = new RunInfoCodec(ComponentPool.getInstance());
 
         Map<String, ?> componentNames = prefs.getAll();
         for (String component : componentNames.keySet()) {
             String data = prefs.getString(component, "");
 
-            if (data.isEmpty()) {
+            if (data.isEmpty() || !codec.decodeLegacy(component, data)) {
                 continue;
             }
 
-            allApps.add(deserializeApplicationRunInformation(component, data));
+            allApps.add(fromCodec(codec));
         }
 
-        return allApps;
-    }
-
-    public static String serializeApplicationRunInformation(ApplicationRunInformation appInfo) {
-        return String.valueOf(appInfo.getCount()) + APP_RUN_INFO_SEPARATOR + appInfo.getLastExecution().getTime() + APP_RUN_INFO_SEPARATOR +
-                appInfo.isNewApp() + APP_RUN_INFO_SEPARATOR + appInfo.isPinnedApp() + APP_RUN_INFO_SEPARATOR + appInfo.isUpdatedApp();
-    }
-
-    public static ApplicationRunInformation deserializeApplicationRunInformation(String component, String data) {
-        String[] splits = data.split(APP_RUN_INFO_SEPARATOR);
-        int count;
-        Date lastExecution = Calendar.getInstance().getTime();
-        boolean isNewApp;
-        boolean isUpdatedApp;
-        boolean isPinnedApp;
-
-        try {
-            count = Integer.parseInt(splits[0]);
-            lastExecution.setTime(Long.valueOf(splits[1]));
-            isNewApp = Boolean.parseBoolean(splits[2]);
-            isPinnedApp = Boolean.parseBoolean(splits[3]);
-            isUpdatedApp = Boolean.parseBoolean(splits[4]);
-        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-            e.printStackTrace();
-            count = 0;
-            lastExecution = Calendar.getInstance().getTime();
-            isNewApp = false;
-            isUpdatedApp = false;
-            isPinnedApp = false;
-        }
+        Log.d(TAG, "Migrating " + allApps.size() + " legacy records");
+        journal.save(allApps);
+        journal.compact();
+
+        prefs.edit().clear().apply();
+    }
 
-        ApplicationRunInformation appRunInfo = new ApplicationRunInformation(ApplicationRunInformation.deserializeComponentName(component), count);
-        appRunInfo.mLastExecution = lastExecution;
-        appRunInfo.mIsNewApp = isNewApp;
-        appRunInfo.mIsUpdatedApp = isUpdatedApp;
-        appRunInfo.mIsPinnedApp = isPinnedApp;
+    private static ApplicationRunInformation fromCodec(RunInfoCodec codec) {
+        ApplicationRunInformation appRunInfo = new ApplicationRunInformation(codec.componentId, codec.count);
+        appRunInfo.setLastExecutionMillis(codec.lastExecution);
+        appRunInfo.setFlags(codec.flags);
+        appRunInfo.setScore(codec.score);
 
         return appRunInfo;
     }
@@ -316,15 +445,62 @@ public class ApplicationRunInformation {
         editor.apply();
     }
 
+    /**
+     * @return the days after which a launch weighs half as much when ranking by frecency
+     */
+    public static int getFrecencyHalfLifeInDays(Context context) {
+        int halfLifeDays = context.getResources().getInteger(R.integer.frecency_half_life_default);
+        SharedPreferences sharedPreferences = context.getSharedPreferences(APP_LIFECYCLE_PREFERENCES, Activity.MODE_PRIVATE);
+        return sharedPreferences.getInt(FRECENCY_HALF_LIFE_IN_DAYS, halfLifeDays);
+    }
+
+    public static void setFrecencyHalfLifeInDays(Context context, int days) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(APP_LIFECYCLE_PREFERENCES, Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putInt(FRECENCY_HALF_LIFE_IN_DAYS, days);
+        editor.apply();
+    }
+
+    /**
+     * @return whether the most used apps are ranked by frecency instead of run count
+     */
+    public static boolean isMostUsedByFrecency(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(APP_LIFECYCLE_PREFERENCES, Activity.MODE_PRIVATE);
+        return sharedPreferences.getBoolean(MOST_USED_BY_FRECENCY, false);
+    }
+
+    public static void setMostUsedByFrecency(Context context, boolean byFrecency) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(APP_LIFECYCLE_PREFERENCES, Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putBoolean(MOST_USED_BY_FRECENCY, byFrecency);
+        editor.apply();
+    }
+
     public static long toMilliSeconds(long days) {
         return days * HOURS_IN_A_DAY * MINUTES_IN_HOUR * SECONDS_IN_MINUTE * MILLIS_IN_SECOND;
     }
 
-    public void setAge(APP_AGE age) {
-        mAppAge = age;
+    // the age is derived from the last execution, it never moves a ranking
+    void setAge(APP_AGE age) {
+        int flags = getFlags() & ~RunInfoStore.FLAGS_AGE;
+        if (age == APP_AGE.FREQUENT_USE) {
+            flags |= RunInfoStore.FLAG_AGE_FREQUENT_USE;
+        } else if (age == APP_AGE.RARE_USE) {
+            flags |= RunInfoStore.FLAG_AGE_RARE_USE;
+        }
+        setFlags(flags);
     }
 
     public APP_AGE getAge() {
-        return mAppAge;
+        int flags = getFlags();
+        if ((flags & RunInfoStore.FLAG_AGE_FREQUENT_USE) != 0) {
+            return APP_AGE.FREQUENT_USE;
+        }
+        if ((flags & RunInfoStore.FLAG_AGE_RARE_USE) != 0) {
+            return APP_AGE.RARE_USE;
+        }
+        return null;
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import android.content.ComponentName;
+
+import java.util.Arrays;
+
+/**
+ * Interns (package, class) pairs into stable, dense int ids for the lifetime of the process.
+ * <p>
+ * The ids are shared by the usage stats ingestion, the {@link ApplicationRunInfoManager}
+ * and the widget, so a component is hashed and copied once and every later lookup is an
+ * allocation free probe of an open addressing table.
+ */
+public final class ComponentPool {
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EMPTY_SLOT = -1;
+
+    private static final ComponentPool sInstance = new ComponentPool();
+
+    private ComponentName[] mComponents = new ComponentName[INITIAL_CAPACITY];
+    private int[] mHashes = new int[INITIAL_CAPACITY];
+    // open addressing table of ids, twice the size of the id columns
+    private int[] mTable = newTable(INITIAL_CAPACITY * 2);
+    private int mSize;
+
+    public static ComponentPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the id of the component, or {@link #NONE} if it was never interned
+     */
+    public synchronized int find(ComponentName component) {
+        return find(component.getPackageName(), component.getClassName());
+    }
+
+    public synchronized int find(String packageName, String className) {
+        int hash = hash(packageName, className);
+        int mask = mTable.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = mTable[slot];
+            if (id == EMPTY_SLOT) {
+                return NONE;
+            }
+            if (matches(id, hash, packageName, className)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the component, assigning the next free id on first sight.
+     * The given instance becomes the canonical one, it is not copied.
+     */
+    public synchronized int intern(ComponentName component) {
+        int id = find(component);
+        return id != NONE ? id : add(component);
+    }
+
+    public synchronized int intern(String packageName, String className) {
+        int id = find(packageName, className);
+        return id != NONE ? id : add(new ComponentName(packageName, className));
+    }
+
+    /**
+     * Same as {@link #intern(String, String)} for names held in char buffers, only
+     * allocating Strings when the component was never seen before.
+     */
+    public synchronized int intern(char[] packageName, int packageLength, char[] className, int classLength) {
+        int hash = spread(hashChars(packageName, packageLength) * 31 + hashChars(className, classLength));
+        int mask = mTable.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = mTable[slot];
+            if (id == EMPTY_SLOT) {
+                break;
+            }
+            ComponentName component = mComponents[id];
+            if (mHashes[id] == hash
+                    && contentEquals(component.getClassName(), className, classLength)
+                    && contentEquals(component.getPackageName(), packageName, packageLength)) {
+                return id;
+            }
+        }
+        return add(new ComponentName(new String(packageName, 0, packageLength), new String(className, 0, classLength)));
+    }
+
+    public synchronized ComponentName getComponentName(int id) {
+        return mComponents[id];
+    }
+
+    public synchronized String getPackageName(int id) {
+        return mComponents[id].getPackageName();
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private int add(ComponentName component) {
+        if (mSize == mComponents.length) {
+            grow();
+        }
+
+        int id = mSize++;
+        mComponents[id] = component;
+        mHashes[id] = hash(component.getPackageName(), component.getClassName());
+        insert(id);
+
+        return id;
+    }
+
+    private boolean matches(int id, int hash, String packageName, String className) {
+        ComponentName component = mComponents[id];
+        return mHashes[id] == hash
+                && component.getClassName().equals(className)
+                && component.getPackageName().equals(packageName);
+    }
+
+    private void insert(int id) {
+        int mask = mTable.length - 1;
+        int slot = mHashes[id] & mask;
+        while (mTable[slot] != EMPTY_SLOT) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = id;
+    }
+
+    private void grow() {
+        int capacity = mComponents.length * 2;
+        mComponents = Arrays.copyOf(mComponents, capacity);
+        mHashes = Arrays.copyOf(mHashes, capacity);
+        mTable = newTable(capacity * 2);
+        for (int id = 0; id < mSize; id++) {
+            insert(id);
+        }
+    }
+
+    private static int[] newTable(int size) {
+        int[] table = new int[size];
+        Arrays.fill(table, EMPTY_SLOT);
+        return table;
+    }
+
+    private static int hash(String packageName, String className) {
+        return spread(packageName.hashCode() * 31 + className.hashCode());
+    }
+
+    // spread the high bits, the table is indexed with the low ones
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // same value as String.hashCode() for the same characters
+    private static int hashChars(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        return hash;
+    }
+
+    private static boolean contentEquals(String string, char[] chars, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+/**
+ * Exponentially decayed launch scores, kept in the log domain.
+ * <p>
+ * Each launch weighs 1 at its time and half as much every half-life later. An application
+ * keeps log2 of the sum of those weights as of its last execution. A launch folds into it in
+ * O(1), and two applications compare by that score shifted by their last execution in
+ * half-lives, a value that does not move with time. So a ranking on it stays valid without
+ * ever decaying the scores of the applications that were not launched.
+ */
+final class Frecency {
+    // no launch was ever scored
+    static final double NO_SCORE = Double.NEGATIVE_INFINITY;
+
+    private Frecency() {
+    }
+
+    /**
+     * @return the score of a record without one, its launches all counted at its last execution
+     */
+    static double seed(int count) {
+        return count > 0 ? log2(count) : NO_SCORE;
+    }
+
+    /**
+     * Folds launches at a time into a score.
+     *
+     * @return the score as of the later of the last execution and the time
+     */
+    static double launched(double score, long lastExecution, int launches, long time, long halfLife) {
+        if (launches <= 0) {
+            return rebase(score, lastExecution, time, halfLife);
+        }
+        if (lastExecution == RunInfoStore.NO_EXECUTION || score == NO_SCORE) {
+            return log2(launches);
+        }
+        if (time == RunInfoStore.NO_EXECUTION) {
+            // launches without a time count at the last execution
+            time = lastExecution;
+        }
+
+        long reference = Math.max(lastExecution, time);
+        double before = score - (double) (reference - lastExecution) / halfLife;
+        double added = log2(launches) - (double) (reference - time) / halfLife;
+        // log2(2^before + 2^added) without leaving the log domain
+        double high = Math.max(before, added);
+        return high + log2(1 + Math.pow(2, -Math.abs(before - added)));
+    }
+
+    /**
+     * @return the score as of another last execution, with no launch in between
+     */
+    static double rebase(double score, long lastExecution, long time, long halfLife) {
+        if (lastExecution == RunInfoStore.NO_EXECUTION || time == RunInfoStore.NO_EXECUTION || score == NO_SCORE) {
+            return score;
+        }
+        return score - (double) (time - lastExecution) / halfLife;
+    }
+
+    /**
+     * @return a {@link RankingIndex} key ordering the applications by decayed score
+     */
+    static long key(double score, long lastExecution, long halfLife) {
+        if (score == NO_SCORE || lastExecution == RunInfoStore.NO_EXECUTION) {
+            return Long.MIN_VALUE;
+        }
+        // the bits of a double sort as a long once the negative ones are flipped
+        long bits = Double.doubleToLongBits(score + (double) lastExecution / halfLife);
+        return bits >= 0 ? bits : bits ^ Long.MAX_VALUE;
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+}
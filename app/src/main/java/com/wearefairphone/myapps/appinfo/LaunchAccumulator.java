@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects launches from any number of threads without a lock, until the one thread changing
+ * an {@link ApplicationRunInfoManager} drains them into it.
+ * <p>
+ * Each application has its own atomic counter and last execution cell, addressed by
+ * {@link ComponentPool} id in fixed size chunks, so launches of different applications never
+ * contend and launches of the same one only retry a CAS. The last execution only moves
+ * forward and is never reset: a launch publishes it before its count, and the drain reads it
+ * after taking the count, so every count it takes comes with the time of its launches. A dirty
+ * bit per id lets the drain visit only the applications launched since the previous one. A
+ * launch racing with the drain is either drained now or on the next drain, it is never lost.
+ */
+public final class LaunchAccumulator {
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final class Chunk {
+        final AtomicIntegerArray launches = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicLongArray lastExecutions = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray dirty = new AtomicLongArray(CHUNK_SIZE >>> 6);
+        // last executions already folded in, only used by the draining thread
+        final long[] drainedExecutions = new long[CHUNK_SIZE];
+
+        Chunk() {
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                lastExecutions.set(i, RunInfoStore.NO_EXECUTION);
+            }
+            Arrays.fill(drainedExecutions, RunInfoStore.NO_EXECUTION);
+        }
+    }
+
+    // only grows, replaced under the lock and read without it
+    private volatile Chunk[] mChunks = new Chunk[0];
+
+    /**
+     * Records one launch of the application, from any thread.
+     */
+    public void applicationLaunched(int componentId, long timeStamp) {
+        applicationLaunched(componentId, 1, timeStamp);
+    }
+
+    /**
+     * Records launches of the application, from any thread.
+     */
+    public void applicationLaunched(int componentId, int launches, long lastExecution) {
+        Chunk chunk = getChunk(componentId);
+        int index = componentId & CHUNK_MASK;
+
+        // the time before the count, a drain taking the count then reads a time at least as late
+        for (long current = chunk.lastExecutions.get(index);
+             lastExecution > current && !chunk.lastExecutions.compareAndSet(index, current, lastExecution);
+             current = chunk.lastExecutions.get(index)) {
+            // lost the race to another launch, retry against its value
+        }
+        if (launches != 0) {
+            chunk.launches.getAndAdd(index, launches);
+        }
+
+        // set last, the drain clears the bit before it takes the values
+        int word = index >>> 6;
+        long bit = 1L << index;
+        for (long bits = chunk.dirty.get(word);
+             (bits & bit) == 0 && !chunk.dirty.compareAndSet(word, bits, bits | bit);
+             bits = chunk.dirty.get(word)) {
+            // another id of the word changed, retry
+        }
+    }
+
+    /**
+     * Folds the launches recorded since the last drain into the manager. Must only be called
+     * by the thread changing the manager, the lists are not refreshed.
+     *
+     * @return the number of launches folded in
+     */
+    public int drainTo(ApplicationRunInfoManager manager) {
+        Chunk[] chunks = mChunks;
+        int launches = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            Chunk chunk = chunks[c];
+            if (chunk == null) {
+                continue;
+            }
+
+            for (int word = 0; word < chunk.dirty.length(); word++) {
+                long bits = chunk.dirty.getAndSet(word, 0);
+                while (bits != 0) {
+                    int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+
+                    int count = chunk.launches.getAndSet(index, 0);
+                    long lastExecution = chunk.lastExecutions.get(index);
+                    // already taken by the previous drain, the bit was set again after it
+                    if (count == 0 && lastExecution <= chunk.drainedExecutions[index]) {
+                        continue;
+                    }
+                    chunk.drainedExecutions[index] = lastExecution;
+                    manager.applicationLaunched((c << CHUNK_SHIFT) + index, count, lastExecution);
+                    launches += count;
+                }
+            }
+        }
+        return launches;
+    }
+
+    private Chunk getChunk(int componentId) {
+        if (componentId < 0) {
+            throw new IllegalArgumentException("Invalid value for component id");
+        }
+
+        int c = componentId >>> CHUNK_SHIFT;
+        Chunk[] chunks = mChunks;
+        if (c < chunks.length && chunks[c] != null) {
+            return chunks[c];
+        }
+        return addChunk(c);
+    }
+
+    private synchronized Chunk addChunk(int c) {
+        Chunk[] chunks = mChunks;
+        if (c >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+        } else if (chunks[c] != null) {
+            return chunks[c];
+        } else {
+            chunks = chunks.clone();
+        }
+        Chunk chunk = new Chunk();
+        chunks[c] = chunk;
+        mChunks = chunks;
+        return chunk;
+    }
+}
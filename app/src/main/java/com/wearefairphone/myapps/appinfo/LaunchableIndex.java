@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps every installed package to the {@link ComponentPool} id of its launcher activity.
+ * <p>
+ * The index is built from a single MAIN/LAUNCHER query instead of a PackageManager call per
+ * package, saved to disk so a new process starts from it, and updated one package at a time
+ * from the package broadcasts. Lookups are a hash probe.
+ */
+public final class LaunchableIndex {
+    private static final String TAG = LaunchableIndex.class.getSimpleName();
+
+    private static final String FILE_NAME = "launchable_index";
+    private static final int MAGIC = 0x4D414C49; // MALI
+    private static final int VERSION = 1;
+
+    private static LaunchableIndex sInstance;
+
+    private final PackageManager mPackageManager;
+    private final AtomicFile mFile;
+    private final ComponentPool mPool = ComponentPool.getInstance();
+    private final RunInfoCodec mCodec = new RunInfoCodec(mPool);
+
+    // launcher component id by package name
+    private final Map<String, Integer> mLaunchComponents = new HashMap<>();
+    private boolean mLoaded;
+
+    public static synchronized LaunchableIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LaunchableIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LaunchableIndex(Context context) {
+        mPackageManager = context.getPackageManager();
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the id of the launcher activity of the package, or {@link ComponentPool#NONE}
+     * if the package has none
+     */
+    public synchronized int getLaunchComponent(String packageName) {
+        ensureLoaded();
+        Integer id = mLaunchComponents.get(packageName);
+        return id != null ? id : ComponentPool.NONE;
+    }
+
+    /**
+     * Resolves the launcher activity of an added, replaced or changed package again.
+     */
+    public synchronized void packageChanged(String packageName) {
+        ensureLoaded();
+
+        Intent launcherIntent = newLauncherIntent();
+        launcherIntent.setPackage(packageName);
+        List<ResolveInfo> launchables = mPackageManager.queryIntentActivities(launcherIntent, 0);
+
+        mLaunchComponents.remove(packageName);
+        if (launchables != null && !launchables.isEmpty()) {
+            add(launchables.get(0).activityInfo);
+        }
+        write();
+    }
+
+    public synchronized void packageRemoved(String packageName) {
+        ensureLoaded();
+        if (mLaunchComponents.remove(packageName) != null) {
+            write();
+        }
+    }
+
+    /**
+     * Drops the index and builds it again from the package manager.
+     */
+    public synchronized void rebuild() {
+        mLaunchComponents.clear();
+
+        List<ResolveInfo> launchables = mPackageManager.queryIntentActivities(newLauncherIntent(), 0);
+        if (launchables != null) {
+            for (ResolveInfo launchable : launchables) {
+                // the first launcher activity of a package wins, as in getLaunchIntentForPackage
+                if (!mLaunchComponents.containsKey(launchable.activityInfo.packageName)) {
+                    add(launchable.activityInfo);
+                }
+            }
+        }
+        mLoaded = true;
+        write();
+    }
+
+    private void add(ActivityInfo activityInfo) {
+        mLaunchComponents.put(activityInfo.packageName, mPool.intern(activityInfo.packageName, activityInfo.name));
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        if (!read()) {
+            rebuild();
+        }
+        mLoaded = true;
+    }
+
+    private boolean read() {
+        if (!mFile.getBaseFile().exists()) {
+            return false;
+        }
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(mFile.readFully());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring index with unknown format");
+                return false;
+            }
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                mCodec.decodeComponent(in);
+                mLaunchComponents.put(mPool.getPackageName(mCodec.componentId), mCodec.componentId);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read index", e);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(TAG, "Corrupt index", e);
+        }
+        mLaunchComponents.clear();
+        return false;
+    }
+
+    private void write() {
+        int size = 12;
+        for (int id : mLaunchComponents.values()) {
+            size += mCodec.maxRecordSize(id);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(mLaunchComponents.size());
+        for (int id : mLaunchComponents.values()) {
+            mCodec.encodeComponent(out, id);
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            stream.write(out.array(), 0, out.position());
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write index", e);
+            mFile.failWrite(stream);
+        }
+    }
+
+    private static Intent newLauncherIntent() {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        return intent;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Write-behind persistence of an {@link ApplicationRunInfoManager}.
+ * <p>
+ * {@link #schedule()} only moves the changes of the manager into a pending {@link RunInfoDelta}
+ * on the caller thread; the journal is written later on a background thread. Every schedule
+ * within the window pushes the write back, so a burst of mutations becomes a single write
+ * once the manager goes idle, bounded by a maximum latency so a steady stream still gets
+ * persisted. Pending changes are also written when the system asks the process to trim its
+ * memory, and {@link #flush()} writes them on the calling thread.
+ */
+public final class PersistenceScheduler implements ComponentCallbacks2 {
+    private static final String TAG = PersistenceScheduler.class.getSimpleName();
+
+    // how many windows a write can be pushed back by a steady stream of changes
+    private static final int MAX_DELAY_WINDOWS = 4;
+
+    private final Context mContext;
+    private final String mKey;
+    private final ApplicationRunInfoManager mManager;
+    private final long mWindowMillis;
+
+    private final Handler mHandler;
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    // changes collected from the manager and not written yet, guarded by itself
+    private final RunInfoDelta mPending = new RunInfoDelta();
+    // the batch being written, only touched with the write lock held
+    private final RunInfoDelta mWriting = new RunInfoDelta();
+    private final Object mWriteLock = new Object();
+
+    // uptime of the first change of the pending batch, guarded by mPending
+    private long mFirstPendingTime;
+
+    /**
+     * @param windowMillis how long to wait for more changes before writing
+     */
+    public PersistenceScheduler(Context context, String key, ApplicationRunInfoManager manager, long windowMillis) {
+        mContext = context.getApplicationContext();
+        mKey = key;
+        mManager = manager;
+        mWindowMillis = windowMillis;
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        mContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Collects the changes of the manager and schedules them to be written.
+     * Must be called on the thread mutating the manager.
+     */
+    public void schedule() {
+        if (!mManager.hasChanges()) {
+            return;
+        }
+
+        long delay;
+        synchronized (mPending) {
+            long now = SystemClock.uptimeMillis();
+            if (mPending.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            mManager.collectChanges(mPending);
+
+            long deadline = mFirstPendingTime + MAX_DELAY_WINDOWS * mWindowMillis;
+            delay = Math.max(0, Math.min(mWindowMillis, deadline - now));
+        }
+
+        mHandler.removeCallbacks(mWrite);
+        mHandler.postDelayed(mWrite, delay);
+    }
+
+    /**
+     * Writes the pending changes on the calling thread, blocking until they are on disk.
+     * Changes of the manager not {@link #schedule() scheduled} yet are not included.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mWrite);
+        write();
+    }
+
+    private void requestWrite() {
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+        }
+        mHandler.removeCallbacks(mWrite);
+        mHandler.post(mWrite);
+    }
+
+    private void write() {
+        // the lock keeps batches in order when flush() races the background thread
+        synchronized (mWriteLock) {
+            synchronized (mPending) {
+                mWriting.addAll(mPending);
+                mPending.clear();
+            }
+            if (mWriting.isEmpty()) {
+                return;
+            }
+
+            Log.d(TAG, "Writing " + mWriting.size() + " changes to " + mKey);
+            ApplicationRunInformation.persistAppRunInfoChanges(mContext, mKey, mWriting);
+            mWriting.clear();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        requestWrite();
+    }
+
+    @Override
+    public void onLowMemory() {
+        requestWrite();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
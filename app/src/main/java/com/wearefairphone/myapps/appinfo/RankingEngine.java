@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the views defined by {@link RankingPolicy}s out of the ranking indexes.
+ * <p>
+ * Each ranking order is walked once, feeding every view of that order until all of them are
+ * full or stopped. Every application keeps a membership bit per view, so excluding the
+ * applications of another view, and asking whether an application is listed, is a mask test.
+ */
+final class RankingEngine {
+    // one membership bit per view
+    static final int MAX_VIEWS = Integer.SIZE;
+    // the orders of RankingPolicy, each walking its own index
+    static final int ORDER_COUNT = 4;
+
+    private final List<RankingPolicy> mPolicies = new ArrayList<>();
+    private final List<String> mNames = new ArrayList<>();
+    private int[] mExclusions = new int[0];
+    // orders in the sequence they are walked, the order of their first view
+    private final List<Integer> mOrders = new ArrayList<>();
+
+    // ids of each view by rank, in the first mCounts[view] entries
+    private int[][] mIds = new int[0][];
+    private int[] mCounts = new int[0];
+    // limits of the ranking in progress
+    private int[] mLimits = new int[0];
+
+    // view bits by id, and the ids having any, to clear them on the next ranking
+    private int[] mMembership = new int[16];
+    private int[] mListed = new int[16];
+    private int mListedCount;
+
+    /**
+     * @return the index of the view
+     * @throws IllegalArgumentException if the view cannot be added
+     */
+    int addPolicy(RankingPolicy policy) {
+        int view = mPolicies.size();
+        if (view == MAX_VIEWS) {
+            throw new IllegalArgumentException("Too many views");
+        }
+        if (mNames.contains(policy.getName())) {
+            throw new IllegalArgumentException("View already exists: " + policy.getName());
+        }
+
+        int order = policy.getOrder();
+        if (order < 0 || order >= ORDER_COUNT) {
+            throw new IllegalArgumentException("Unknown order: " + order);
+        }
+        int walk = mOrders.indexOf(order);
+        if (walk < 0) {
+            walk = mOrders.size();
+        }
+
+        int exclusions = 0;
+        for (String name : policy.getExcludedViews()) {
+            int excluded = mNames.indexOf(name);
+            // the excluded view must be complete, or ahead in the same walk, when this one is fed
+            if (excluded < 0 || mOrders.indexOf(mPolicies.get(excluded).getOrder()) > walk) {
+                throw new IllegalArgumentException("Cannot exclude " + name + " from " + policy.getName());
+            }
+            exclusions |= 1 << excluded;
+        }
+
+        if (walk == mOrders.size()) {
+            mOrders.add(order);
+        }
+        mPolicies.add(policy);
+        mNames.add(policy.getName());
+        mExclusions = Arrays.copyOf(mExclusions, view + 1);
+        mExclusions[view] = exclusions;
+        mIds = Arrays.copyOf(mIds, view + 1);
+        mIds[view] = new int[0];
+        mCounts = Arrays.copyOf(mCounts, view + 1);
+        mLimits = Arrays.copyOf(mLimits, view + 1);
+        return view;
+    }
+
+    int getViewCount() {
+        return mPolicies.size();
+    }
+
+    String getName(int view) {
+        return mNames.get(view);
+    }
+
+    RankingPolicy getPolicy(int view) {
+        return mPolicies.get(view);
+    }
+
+    int[] getIds(int view) {
+        return mIds[view];
+    }
+
+    int getCount(int view) {
+        return mCounts[view];
+    }
+
+    boolean isListed(int id) {
+        return id >= 0 && id < mMembership.length && mMembership[id] != 0;
+    }
+
+    /**
+     * Empties every view.
+     */
+    void clear() {
+        for (int i = 0; i < mListedCount; i++) {
+            mMembership[mListed[i]] = 0;
+        }
+        mListedCount = 0;
+        Arrays.fill(mCounts, 0);
+    }
+
+    /**
+     * @param indexes the index of each order, by order
+     */
+    void rank(RunInfoStore store, RankingIndex[] indexes) {
+        clear();
+        for (int view = 0; view < mPolicies.size(); view++) {
+            int limit = Math.max(0, mPolicies.get(view).getLimit());
+            if (mIds[view].length < limit) {
+                mIds[view] = new int[limit];
+            }
+            mLimits[view] = limit;
+        }
+
+        // a single view moved along each walk, the policies only read it during the call
+        ApplicationRunInformation cursor = new ApplicationRunInformation(store, RunInfoStore.NONE);
+        for (int order : mOrders) {
+            walk(cursor, indexes[order], order);
+        }
+    }
+
+    private void walk(ApplicationRunInformation cursor, RankingIndex index, int order) {
+        // the views still taking applications in this walk
+        int pending = 0;
+        for (int view = 0; view < mPolicies.size(); view++) {
+            if (mPolicies.get(view).getOrder() == order && mLimits[view] > 0) {
+                pending |= 1 << view;
+            }
+        }
+
+        for (int id = index.first(); id != RankingIndex.NONE && pending != 0; id = index.next(id)) {
+            cursor.moveTo(id);
+            for (int views = pending; views != 0; views &= views - 1) {
+                int view = Integer.numberOfTrailingZeros(views);
+                if (id < mMembership.length && (mMembership[id] & mExclusions[view]) != 0) {
+                    continue;
+                }
+
+                int decision = mPolicies.get(view).evaluate(cursor);
+                if (decision == RankingPolicy.STOP) {
+                    pending &= ~(1 << view);
+                } else if (decision == RankingPolicy.ACCEPT) {
+                    mIds[view][mCounts[view]++] = id;
+                    addMember(id, view);
+                    if (mCounts[view] == mLimits[view]) {
+                        pending &= ~(1 << view);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addMember(int id, int view) {
+        if (id >= mMembership.length) {
+            mMembership = Arrays.copyOf(mMembership, Math.max(id + 1, mMembership.length * 2));
+        }
+        if (mMembership[id] == 0) {
+            if (mListedCount == mListed.length) {
+                mListed = Arrays.copyOf(mListed, mListedCount * 2);
+            }
+            mListed[mListedCount++] = id;
+        }
+        mMembership[id] |= 1 << view;
+    }
+}
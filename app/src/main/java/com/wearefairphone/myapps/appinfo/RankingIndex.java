@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Treap over dense application ids, sorted by a descending key.
+ * Ties are broken by ascending id so the order is total.
+ * <p>
+ * Inserting, removing or re-keying an id costs O(log n), and walking the first k
+ * entries with {@link #first()} / {@link #next(int)} costs O(k log n), so the ranked
+ * lists never need a scan over every tracked application.
+ */
+final class RankingIndex {
+    static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Random mRandom = new Random();
+
+    private int[] mLeft;
+    private int[] mRight;
+    private int[] mPriority;
+    private boolean[] mIndexed;
+    private long[] mKey;
+
+    private int mRoot = NONE;
+
+    RankingIndex() {
+        mLeft = new int[INITIAL_CAPACITY];
+        mRight = new int[INITIAL_CAPACITY];
+        mPriority = new int[INITIAL_CAPACITY];
+        mIndexed = new boolean[INITIAL_CAPACITY];
+        mKey = new long[INITIAL_CAPACITY];
+    }
+
+    boolean contains(int id) {
+        return id >= 0 && id < mIndexed.length && mIndexed[id];
+    }
+
+    /**
+     * Inserts the id with the given key, or moves it if it is already indexed.
+     */
+    void put(int id, long key) {
+        if (contains(id)) {
+            if (mKey[id] == key) {
+                return;
+            }
+            remove(id);
+        }
+
+        ensureCapacity(id + 1);
+        mKey[id] = key;
+        mPriority[id] = mRandom.nextInt();
+        mLeft[id] = NONE;
+        mRight[id] = NONE;
+        mIndexed[id] = true;
+        mRoot = insert(mRoot, id);
+    }
+
+    void remove(int id) {
+        if (!contains(id)) {
+            return;
+        }
+        mRoot = erase(mRoot, id);
+        mIndexed[id] = false;
+    }
+
+    void clear() {
+        mRoot = NONE;
+        Arrays.fill(mIndexed, false);
+    }
+
+    /**
+     * @return the id with the highest key, or {@link #NONE} when empty
+     */
+    int first() {
+        int node = mRoot;
+        if (node == NONE) {
+            return NONE;
+        }
+        while (mLeft[node] != NONE) {
+            node = mLeft[node];
+        }
+        return node;
+    }
+
+    /**
+     * @return the id ranked right after the given one, or {@link #NONE} if it is the last
+     */
+    int next(int id) {
+        int successor = NONE;
+        int node = mRoot;
+        while (node != NONE) {
+            if (precedes(id, node)) {
+                successor = node;
+                node = mLeft[node];
+            } else {
+                node = mRight[node];
+            }
+        }
+        return successor;
+    }
+
+    private boolean precedes(int a, int b) {
+        return mKey[a] > mKey[b] || (mKey[a] == mKey[b] && a < b);
+    }
+
+    private int insert(int node, int id) {
+        if (node == NONE) {
+            return id;
+        }
+        if (precedes(id, node)) {
+            mLeft[node] = insert(mLeft[node], id);
+            if (mPriority[mLeft[node]] > mPriority[node]) {
+                node = rotateRight(node);
+            }
+        } else {
+            mRight[node] = insert(mRight[node], id);
+            if (mPriority[mRight[node]] > mPriority[node]) {
+                node = rotateLeft(node);
+            }
+        }
+        return node;
+    }
+
+    private int erase(int node, int id) {
+        if (node == id) {
+            return merge(mLeft[node], mRight[node]);
+        }
+        if (precedes(id, node)) {
+            mLeft[node] = erase(mLeft[node], id);
+        } else {
+            mRight[node] = erase(mRight[node], id);
+        }
+        return node;
+    }
+
+    // every id in the first tree precedes every id in the second one
+    private int merge(int first, int second) {
+        if (first == NONE) {
+            return second;
+        }
+        if (second == NONE) {
+            return first;
+        }
+        if (mPriority[first] > mPriority[second]) {
+            mRight[first] = merge(mRight[first], second);
+            return first;
+        }
+        mLeft[second] = merge(first, mLeft[second]);
+        return second;
+    }
+
+    private int rotateRight(int node) {
+        int pivot = mLeft[node];
+        mLeft[node] = mRight[pivot];
+        mRight[pivot] = node;
+        return pivot;
+    }
+
+    private int rotateLeft(int node) {
+        int pivot = mRight[node];
+        mRight[node] = mLeft[pivot];
+        mLeft[pivot] = node;
+        return pivot;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIndexed.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mIndexed.length * 2);
+        mLeft = Arrays.copyOf(mLeft, newCapacity);
+        mRight = Arrays.copyOf(mRight, newCapacity);
+        mPriority = Arrays.copyOf(mPriority, newCapacity);
+        mIndexed = Arrays.copyOf(mIndexed, newCapacity);
+        mKey = Arrays.copyOf(mKey, newCapacity);
+    }
+}
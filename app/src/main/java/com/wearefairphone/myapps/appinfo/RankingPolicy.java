@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+/**
+ * Defines one named view of an {@link ApplicationRunInfoManager}, such as the most used or
+ * the recent apps.
+ * <p>
+ * A view reads the applications in the order of one of the ranking indexes and keeps the
+ * ones it accepts, up to its limit. Views reading the same order share one walk of that
+ * index per ranking change, each looking at an application in the order the views were
+ * added. A view may exclude the applications already kept by views added before it.
+ */
+public interface RankingPolicy {
+    /** Applications by decreasing run count. */
+    int ORDER_BY_COUNT = 0;
+    /** Applications by decreasing last execution. */
+    int ORDER_BY_LAST_EXECUTION = 1;
+    /** Applications by decreasing time-decayed launch score, see {@link Frecency}. */
+    int ORDER_BY_FRECENCY = 2;
+    /**
+     * Pinned, new and updated applications only, by decreasing last execution. The walk only
+     * visits those, so views keeping a few flagged applications never scan the others.
+     */
+    int ORDER_FLAGGED_BY_LAST_EXECUTION = 3;
+
+    /** Keep the application in the view. */
+    int ACCEPT = 0;
+    /** Leave the application out and look at the next one. */
+    int SKIP = 1;
+    /** Leave the application out and end the view, no later application qualifies. */
+    int STOP = 2;
+
+    String getName();
+
+    /**
+     * @return {@link #ORDER_BY_COUNT}, {@link #ORDER_BY_LAST_EXECUTION}, {@link #ORDER_BY_FRECENCY}
+     * or {@link #ORDER_FLAGGED_BY_LAST_EXECUTION}
+     */
+    int getOrder();
+
+    /**
+     * @return the maximum number of applications in the view, read on each ranking change
+     */
+    int getLimit();
+
+    /**
+     * @return the names of the views whose applications this one leaves out, all added before it
+     */
+    String[] getExcludedViews();
+
+    /**
+     * @param app a read only view of the application, reused for the next one after the call
+     * @return {@link #ACCEPT}, {@link #SKIP} or {@link #STOP}
+     */
+    int evaluate(ApplicationRunInformation app);
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The views of an {@link ApplicationRunInfoManager}, such as the most used and recent lists,
+ * as published after a ranking change. A snapshot never changes, so any thread can read it
+ * without a lock while the manager goes on changing the model.
+ * <p>
+ * The lists hold frozen records detached from the model, copied when the snapshot was taken.
+ */
+public final class RankingSnapshot {
+    static final RankingSnapshot EMPTY = new RankingSnapshot(0, new String[0], new ApplicationRunInformation[0][]);
+
+    private final long mVersion;
+    private final String[] mNames;
+    private final ApplicationRunInformation[][] mViews;
+    private final List<ApplicationRunInformation>[] mLists;
+
+    @SuppressWarnings("unchecked")
+    private RankingSnapshot(long version, String[] names, ApplicationRunInformation[][] views) {
+        mVersion = version;
+        mNames = names;
+        mViews = views;
+        mLists = new List[views.length];
+        for (int view = 0; view < views.length; view++) {
+            mLists[view] = Collections.unmodifiableList(Arrays.asList(views[view]));
+        }
+    }
+
+    /**
+     * Copies the views the engine ranked out of the store.
+     */
+    static RankingSnapshot of(long version, RunInfoStore store, RankingEngine engine) {
+        int viewCount = engine.getViewCount();
+        String[] names = new String[viewCount];
+        ApplicationRunInformation[][] views = new ApplicationRunInformation[viewCount][];
+        for (int view = 0; view < viewCount; view++) {
+            names[view] = engine.getName(view);
+            views[view] = copy(store, engine.getIds(view), engine.getCount(view));
+        }
+        return new RankingSnapshot(version, names, views);
+    }
+
+    private static ApplicationRunInformation[] copy(RunInfoStore store, int[] ids, int count) {
+        ApplicationRunInformation[] apps = new ApplicationRunInformation[count];
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            ApplicationRunInformation app = new ApplicationRunInformation(id, store.getCount(id));
+            app.setLastExecutionMillis(store.getLastExecution(id));
+            app.setFlags(store.getFlags(id) & ~RunInfoStore.FLAG_PRESENT);
+            app.setScore(store.getScore(id));
+            app.freeze();
+            apps[i] = app;
+        }
+        return apps;
+    }
+
+    /**
+     * @return a number growing with each snapshot published by the manager
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the applications of the view by rank, empty for an unknown view
+     */
+    public List<ApplicationRunInformation> getApps(String view) {
+        int index = indexOf(view);
+        return index >= 0 ? mLists[index] : Collections.<ApplicationRunInformation>emptyList();
+    }
+
+    public List<ApplicationRunInformation> getMostUsedApps() {
+        return getApps(ApplicationRunInfoManager.VIEW_MOST_USED);
+    }
+
+    public List<ApplicationRunInformation> getRecentApps() {
+        return getApps(ApplicationRunInfoManager.VIEW_RECENT);
+    }
+
+    public boolean contains(String view, int componentId) {
+        int index = indexOf(view);
+        if (index < 0) {
+            return false;
+        }
+        // a handful of entries, a scan beats any lookup structure
+        for (ApplicationRunInformation app : mViews[index]) {
+            if (app.getComponentId() == componentId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isMostUsed(int componentId) {
+        return contains(ApplicationRunInfoManager.VIEW_MOST_USED, componentId);
+    }
+
+    public boolean isRecent(int componentId) {
+        return contains(ApplicationRunInfoManager.VIEW_RECENT, componentId);
+    }
+
+    private int indexOf(String view) {
+        for (int i = 0; i < mNames.length; i++) {
+            if (mNames[i].equals(view)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import android.content.ComponentName;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of application run records over reusable {@link ByteBuffer}s.
+ * <p>
+ * A record is the component (two varint length prefixed strings), a varint count, a packed
+ * flags byte, the last execution as a zigzag varint delta against a base time chosen by the
+ * caller and the {@link Frecency} score as a float. Decoding fills the public fields of the
+ * codec instead of returning objects, and component names go through reusable char buffers
+ * into the {@link ComponentPool}, so neither direction allocates per field.
+ * <p>
+ * The codec also reads the ';' separated strings older versions kept in the shared preferences.
+ */
+final class RunInfoCodec {
+    static final int VERSION = 3;
+
+    // packed flag bit telling the record has no last execution and no delta
+    private static final int FLAG_NO_EXECUTION = 1 << 7;
+
+    private static final int MAX_VARINT_LENGTH = 10;
+    private static final int MAX_UTF8_BYTES_PER_CHAR = 3;
+
+    private static final char LEGACY_SEPARATOR = ';';
+    private static final String LEGACY_TRUE = "true";
+
+    private final ComponentPool mPool;
+
+    private char[] mPackageChars = new char[64];
+    private char[] mClassChars = new char[128];
+
+    // fields of the last decoded record
+    int componentId;
+    int count;
+    long lastExecution;
+    int flags;
+    double score;
+
+    RunInfoCodec(ComponentPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @return an upper bound of the encoded size of a record for the component
+     */
+    int maxRecordSize(int id) {
+        ComponentName component = mPool.getComponentName(id);
+        int chars = component.getPackageName().length() + component.getClassName().length();
+        return 2 * MAX_VARINT_LENGTH + chars * MAX_UTF8_BYTES_PER_CHAR + MAX_VARINT_LENGTH + 1 + MAX_VARINT_LENGTH + 4;
+    }
+
+    void encode(ByteBuffer out, int id, int count, long lastExecution, int flags, double score, long baseTime) {
+        encodeComponent(out, id);
+        putVarint(out, count);
+
+        int packed = flags & ~RunInfoStore.FLAG_PRESENT;
+        if (lastExecution == RunInfoStore.NO_EXECUTION) {
+            out.put((byte) (packed | FLAG_NO_EXECUTION));
+        } else {
+            out.put((byte) packed);
+            putVarint(out, zigzag(lastExecution - baseTime));
+        }
+        // a score is a few units above or below zero, a float keeps it to the launch
+        out.putFloat((float) score);
+    }
+
+    void encodeComponent(ByteBuffer out, int id) {
+        ComponentName component = mPool.getComponentName(id);
+        putString(out, component.getPackageName());
+        putString(out, component.getClassName());
+    }
+
+    /**
+     * Reads a record into the fields of the codec.
+     *
+     * @throws java.nio.BufferUnderflowException  if the record is truncated
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    void decode(ByteBuffer in, long baseTime) {
+        decodeComponent(in);
+        count = (int) getVarint(in);
+
+        int packed = in.get() & 0xFF;
+        flags = packed & ~FLAG_NO_EXECUTION;
+        lastExecution = (packed & FLAG_NO_EXECUTION) != 0 ? RunInfoStore.NO_EXECUTION : baseTime + unzigzag(getVarint(in));
+        score = in.getFloat();
+    }
+
+    void decodeComponent(ByteBuffer in) {
+        int packageLength = (int) getVarint(in);
+        mPackageChars = ensureLength(mPackageChars, packageLength);
+        getChars(in, mPackageChars, packageLength);
+
+        int classLength = (int) getVarint(in);
+        mClassChars = ensureLength(mClassChars, classLength);
+        getChars(in, mClassChars, classLength);
+
+        componentId = mPool.intern(mPackageChars, packageLength, mClassChars, classLength);
+    }
+
+    /**
+     * Parses a record of the shared preferences format, "package;class" as the key and
+     * "count;lastExecution;isNew;isPinned;isUpdated" as the value. Malformed values fall back
+     * to a zero count executed now, as the string parser did.
+     *
+     * @return false if the component itself cannot be parsed
+     */
+    boolean decodeLegacy(String component, String data) {
+        int separator = component.indexOf(LEGACY_SEPARATOR);
+        if (separator < 0 || component.indexOf(LEGACY_SEPARATOR, separator + 1) >= 0) {
+            return false;
+        }
+        int classLength = component.length() - separator - 1;
+        mPackageChars = ensureLength(mPackageChars, separator);
+        mClassChars = ensureLength(mClassChars, classLength);
+        component.getChars(0, separator, mPackageChars, 0);
+        component.getChars(separator + 1, component.length(), mClassChars, 0);
+        componentId = mPool.intern(mPackageChars, separator, mClassChars, classLength);
+
+        int countEnd = data.indexOf(LEGACY_SEPARATOR);
+        int lastExecutionEnd = countEnd < 0 ? -1 : data.indexOf(LEGACY_SEPARATOR, countEnd + 1);
+        int newAppEnd = lastExecutionEnd < 0 ? -1 : data.indexOf(LEGACY_SEPARATOR, lastExecutionEnd + 1);
+        int pinnedAppEnd = newAppEnd < 0 ? -1 : data.indexOf(LEGACY_SEPARATOR, newAppEnd + 1);
+        int updatedAppEnd = pinnedAppEnd < 0 ? -1 : data.indexOf(LEGACY_SEPARATOR, pinnedAppEnd + 1);
+        if (updatedAppEnd < 0) {
+            updatedAppEnd = data.length();
+        }
+
+        count = 0;
+        lastExecution = System.currentTimeMillis();
+        flags = 0;
+        score = Frecency.NO_SCORE;
+        if (pinnedAppEnd < 0) {
+            return true;
+        }
+
+        long parsedCount = parseLong(data, 0, countEnd);
+        long parsedLastExecution = parseLong(data, countEnd + 1, lastExecutionEnd);
+        if (parsedCount < 0 || parsedCount > Integer.MAX_VALUE || parsedLastExecution == Long.MIN_VALUE) {
+            return true;
+        }
+
+        count = (int) parsedCount;
+        lastExecution = parsedLastExecution;
+        score = Frecency.seed(count);
+        if (isTrue(data, lastExecutionEnd + 1, newAppEnd)) {
+            flags |= RunInfoStore.FLAG_NEW_APP;
+        }
+        if (isTrue(data, newAppEnd + 1, pinnedAppEnd)) {
+            flags |= RunInfoStore.FLAG_PINNED_APP;
+        }
+        if (isTrue(data, pinnedAppEnd + 1, updatedAppEnd)) {
+            flags |= RunInfoStore.FLAG_UPDATED_APP;
+        }
+        return true;
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // each UTF-16 unit is written on its own, surrogates included, so decoding stays a simple loop
+    private static void putString(ByteBuffer out, String string) {
+        int length = string.length();
+        putVarint(out, length);
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static void getChars(ByteBuffer in, char[] chars, int length) {
+        for (int i = 0; i < length; i++) {
+            chars[i] = getChar(in);
+        }
+    }
+
+    private static char getChar(ByteBuffer in) {
+        int b = in.get() & 0xFF;
+        if (b < 0x80) {
+            return (char) b;
+        }
+        if ((b & 0xE0) == 0xC0) {
+            return (char) (((b & 0x1F) << 6) | (in.get() & 0x3F));
+        }
+        if ((b & 0xF0) == 0xE0) {
+            return (char) (((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+        }
+        throw new IllegalArgumentException("Malformed string");
+    }
+
+    private static char[] ensureLength(char[] chars, int length) {
+        return chars.length >= length ? chars : new char[Math.max(length, chars.length * 2)];
+    }
+
+    /**
+     * @return the decimal value of the range, or Long.MIN_VALUE if it is not a number
+     */
+    private static long parseLong(String string, int start, int end) {
+        if (start >= end) {
+            return Long.MIN_VALUE;
+        }
+        boolean negative = string.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // same rule as Boolean.parseBoolean
+    private static boolean isTrue(String string, int start, int end) {
+        return end - start == LEGACY_TRUE.length() && string.regionMatches(true, start, LEGACY_TRUE, 0, end - start);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import java.util.Arrays;
+
+/**
+ * A batch of run information changes collected from the {@link ApplicationRunInfoManager}:
+ * the new state of every changed application and a tombstone for every removed one.
+ * <p>
+ * Entries are kept in primitive arrays and coalesced by component id, so adding a change
+ * for an application already in the batch overwrites it, and the batch can be reused.
+ * A batch may also carry the time up to which usage events were folded into the changes,
+ * which is persisted together with them.
+ */
+public final class RunInfoDelta {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final byte TOMBSTONE = 0;
+
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private long[] mLastExecutions = new long[INITIAL_CAPACITY];
+    private double[] mScores = new double[INITIAL_CAPACITY];
+    // store flags including FLAG_PRESENT, or TOMBSTONE
+    private byte[] mFlags = new byte[INITIAL_CAPACITY];
+    private int mSize;
+
+    // position + 1 of each component id in the batch, 0 when absent
+    private int[] mPositions = new int[INITIAL_CAPACITY];
+
+    private long mWatermark = RunInfoJournal.NO_WATERMARK;
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0 && mWatermark == RunInfoJournal.NO_WATERMARK;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mPositions[mIds[i]] = 0;
+        }
+        mSize = 0;
+        mWatermark = RunInfoJournal.NO_WATERMARK;
+    }
+
+    /**
+     * Adds every entry of the other batch, entries of the other batch win.
+     */
+    public void addAll(RunInfoDelta other) {
+        for (int i = 0; i < other.mSize; i++) {
+            if (other.mFlags[i] == TOMBSTONE) {
+                remove(other.mIds[i]);
+            } else {
+                put(other.mIds[i], other.mCounts[i], other.mLastExecutions[i], other.mFlags[i], other.mScores[i]);
+            }
+        }
+        if (other.mWatermark != RunInfoJournal.NO_WATERMARK) {
+            mWatermark = other.mWatermark;
+        }
+    }
+
+    public long getWatermark() {
+        return mWatermark;
+    }
+
+    void setWatermark(long watermark) {
+        mWatermark = watermark;
+    }
+
+    void put(int id, int count, long lastExecution, int flags, double score) {
+        int position = positionFor(id);
+        mCounts[position] = count;
+        mLastExecutions[position] = lastExecution;
+        mScores[position] = score;
+        mFlags[position] = (byte) (flags | RunInfoStore.FLAG_PRESENT);
+    }
+
+    void remove(int id) {
+        int position = positionFor(id);
+        mFlags[position] = TOMBSTONE;
+    }
+
+    int getId(int position) {
+        return mIds[position];
+    }
+
+    boolean isRemoved(int position) {
+        return mFlags[position] == TOMBSTONE;
+    }
+
+    int getCount(int position) {
+        return mCounts[position];
+    }
+
+    long getLastExecution(int position) {
+        return mLastExecutions[position];
+    }
+
+    double getScore(int position) {
+        return mScores[position];
+    }
+
+    int getFlags(int position) {
+        return mFlags[position] & ~RunInfoStore.FLAG_PRESENT;
+    }
+
+    private int positionFor(int id) {
+        if (id >= mPositions.length) {
+            mPositions = Arrays.copyOf(mPositions, Math.max(id + 1, mPositions.length * 2));
+        }
+        if (mPositions[id] != 0) {
+            return mPositions[id] - 1;
+        }
+
+        if (mSize == mIds.length) {
+            int capacity = mIds.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mLastExecutions = Arrays.copyOf(mLastExecutions, capacity);
+            mScores = Arrays.copyOf(mScores, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+        }
+        int position = mSize++;
+        mIds[position] = id;
+        mPositions[id] = position + 1;
+        return position;
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append only persistence for the application run information.
+ * <p>
+ * State is kept in two files: a snapshot, replaced atomically through an {@link AtomicFile}
+ * on compaction, and a journal of framed, checksummed mutation records appended on every
+ * save. Loading reads the snapshot and replays the journal on top of it, stopping at the
+ * first torn or corrupt record, so a crash mid append loses at most that last save. Each
+ * append is synced to the disk before the save returns.
+ * Records are encoded by the {@link RunInfoCodec} into a reused buffer.
+ * <p>
+ * The journal mirrors the persisted state in memory, addressed by {@link ComponentPool} id,
+ * so a save only writes the records that differ from it. All records of a save share one
+ * frame, so a save is replayed either entirely or not at all; this keeps the usage events
+ * watermark consistent with the counts folded in up to it.
+ */
+public final class RunInfoJournal {
+    private static final String TAG = RunInfoJournal.class.getSimpleName();
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final int SNAPSHOT_MAGIC = 0x4D415253; // MARS
+    private static final int JOURNAL_MAGIC = 0x4D41524A; // MARJ
+
+    // magic, version and base time
+    private static final int JOURNAL_HEADER_SIZE = 16;
+    // length prefix and crc around each journal record
+    private static final int FRAME_OVERHEAD = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_WATERMARK = 3;
+
+    public static final long NO_WATERMARK = Long.MIN_VALUE;
+
+    // compact once the journal holds this many records and more than twice the live ones
+    private static final int COMPACTION_MIN_RECORDS = 256;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final ComponentPool mPool = ComponentPool.getInstance();
+    private final RunInfoCodec mCodec = new RunInfoCodec(mPool);
+    private final AtomicFile mSnapshotFile;
+    private final File mJournalFile;
+
+    // persisted state, by component id
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private long[] mLastExecutions = new long[INITIAL_CAPACITY];
+    private double[] mScores = new double[INITIAL_CAPACITY];
+    private byte[] mFlags = new byte[INITIAL_CAPACITY];
+    private int mCapacity;
+    private int mLiveRecords;
+
+    // time up to which usage events were folded into the persisted state
+    private long mWatermark = NO_WATERMARK;
+
+    private int mJournalRecords;
+    // timestamps in the journal are deltas against this
+    private long mJournalBaseTime;
+    // whether the journal file starts with a header of the current version, otherwise the next append rewrites it
+    private boolean mJournalHeader;
+    private boolean mLoaded;
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    public RunInfoJournal(File directory, String name) {
+        mSnapshotFile = new AtomicFile(new File(directory, name + SNAPSHOT_SUFFIX));
+        mJournalFile = new File(directory, name + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return true when neither a snapshot nor a journal were ever written
+     */
+    public synchronized boolean isEmpty() {
+        return !mSnapshotFile.getBaseFile().exists() && !mJournalFile.exists();
+    }
+
+    /**
+     * @return the persisted usage events watermark, or {@link #NO_WATERMARK}
+     */
+    public synchronized long getWatermark() {
+        ensureLoaded();
+        return mWatermark;
+    }
+
+    /**
+     * Reads the snapshot and replays the journal.
+     *
+     * @return detached records for every persisted application
+     */
+    public synchronized List<ApplicationRunInformation> load() {
+        ensureLoaded();
+
+        List<ApplicationRunInformation> allApps = new ArrayList<>(mLiveRecords);
+        for (int id = 0; id < mCapacity; id++) {
+            if ((mFlags[id] & RunInfoStore.FLAG_PRESENT) == 0) {
+                continue;
+            }
+            ApplicationRunInformation appInfo = new ApplicationRunInformation(id, mCounts[id]);
+            appInfo.setLastExecutionMillis(mLastExecutions[id]);
+            appInfo.setFlags(mFlags[id] & ~RunInfoStore.FLAG_PRESENT);
+            appInfo.setScore(mScores[id]);
+            allApps.add(appInfo);
+        }
+        return allApps;
+    }
+
+    /**
+     * Persists the given set of applications, appending only the records that changed
+     * since the last save and a tombstone for every application no longer in the set.
+     */
+    public synchronized void save(List<ApplicationRunInformation> appsToSave) {
+        ensureLoaded();
+
+        boolean newJournal = !mJournalHeader;
+        if (newJournal) {
+            mJournalBaseTime = System.currentTimeMillis();
+        }
+
+        boolean[] saved = new boolean[Math.max(mCapacity, mPool.size())];
+        int frame = beginFrame();
+        int records = 0;
+
+        for (ApplicationRunInformation appInfo : appsToSave) {
+            int id = appInfo.getComponentId();
+            saved[id] = true;
+            if (put(id, appInfo.getCount(), appInfo.getLastExecutionMillis(), appInfo.getFlags(), appInfo.getScore())) {
+                writeRecord(OP_PUT, id);
+                records++;
+            }
+        }
+        for (int id = 0; id < mCapacity; id++) {
+            if (!saved[id] && remove(id)) {
+                writeRecord(OP_REMOVE, id);
+                records++;
+            }
+        }
+
+        flush(newJournal, frame, records);
+    }
+
+    /**
+     * Persists a batch of changes, appending a record for each entry that differs from
+     * the persisted state. Costs O(changes); a full snapshot is only written on compaction.
+     */
+    public synchronized void save(RunInfoDelta changes) {
+        ensureLoaded();
+
+        boolean newJournal = !mJournalHeader;
+        if (newJournal) {
+            mJournalBaseTime = System.currentTimeMillis();
+        }
+
+        int frame = beginFrame();
+        int records = 0;
+
+        for (int i = 0; i < changes.size(); i++) {
+            int id = changes.getId(i);
+            if (changes.isRemoved(i)) {
+                if (remove(id)) {
+                    writeRecord(OP_REMOVE, id);
+                    records++;
+                }
+            } else if (put(id, changes.getCount(i), changes.getLastExecution(i), changes.getFlags(i), changes.getScore(i))) {
+                writeRecord(OP_PUT, id);
+                records++;
+            }
+        }
+
+        long watermark = changes.getWatermark();
+        if (watermark != NO_WATERMARK && watermark != mWatermark) {
+            mWatermark = watermark;
+            writeWatermark();
+            records++;
+        }
+
+        flush(newJournal, frame, records);
+    }
+
+    /**
+     * Writes the whole persisted state into a new snapshot and starts an empty journal.
+     */
+    public synchronized void compact() {
+        ensureLoaded();
+
+        mBuffer.clear();
+        ensureRemaining(12);
+        mBuffer.putInt(SNAPSHOT_MAGIC);
+        mBuffer.putInt(RunInfoCodec.VERSION);
+        mBuffer.putInt(mLiveRecords);
+
+        // each timestamp is a delta against the previous record
+        long baseTime = 0;
+        for (int id = 0; id < mCapacity; id++) {
+            if ((mFlags[id] & RunInfoStore.FLAG_PRESENT) != 0) {
+                ensureRemaining(mCodec.maxRecordSize(id));
+                mCodec.encode(mBuffer, id, mCounts[id], mLastExecutions[id], mFlags[id], mScores[id], baseTime);
+                if (mLastExecutions[id] != RunInfoStore.NO_EXECUTION) {
+                    baseTime = mLastExecutions[id];
+                }
+            }
+        }
+        // trailer
+        ensureRemaining(8);
+        mBuffer.putLong(mWatermark);
+
+        FileOutputStream stream = null;
+        try {
+            stream = mSnapshotFile.startWrite();
+            stream.write(mBuffer.array(), 0, mBuffer.position());
+            mSnapshotFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot", e);
+            mSnapshotFile.failWrite(stream);
+            return;
+        }
+
+        // the snapshot holds everything now, a replay of an old journal over it would be idempotent anyway
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            Log.w(TAG, "Failed to truncate " + mJournalFile);
+        }
+        mJournalHeader = false;
+        mJournalRecords = 0;
+    }
+
+    private void flush(boolean newJournal, int frame, int records) {
+        if (records > 0) {
+            endFrame(frame);
+            try {
+                append(newJournal);
+                mJournalRecords += records;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append to " + mJournalFile, e);
+                // the mirror is ahead of the disk now, read it back on the next save
+                invalidate();
+                return;
+            }
+        }
+
+        if (mJournalRecords >= COMPACTION_MIN_RECORDS && mJournalRecords > 2 * mLiveRecords) {
+            compact();
+        }
+    }
+
+    private void invalidate() {
+        Arrays.fill(mFlags, (byte) 0);
+        mWatermark = NO_WATERMARK;
+        mCapacity = 0;
+        mLiveRecords = 0;
+        mJournalRecords = 0;
+        mJournalHeader = false;
+        mLoaded = false;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        readSnapshot();
+        replayJournal();
+    }
+
+    private void readSnapshot() {
+        if (!mSnapshotFile.getBaseFile().exists()) {
+            return;
+        }
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(mSnapshotFile.readFully());
+            if (in.getInt() != SNAPSHOT_MAGIC) {
+                Log.w(TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            int version = in.getInt();
+            if (version != RunInfoCodec.VERSION) {
+                Log.w(TAG, "Ignoring snapshot version " + version);
+                return;
+            }
+            int records = in.getInt();
+            long baseTime = 0;
+            for (int i = 0; i < records; i++) {
+                mCodec.decode(in, baseTime);
+                if (mCodec.lastExecution != RunInfoStore.NO_EXECUTION) {
+                    baseTime = mCodec.lastExecution;
+                }
+                put(mCodec.componentId, mCodec.count, mCodec.lastExecution, mCodec.flags, mCodec.score);
+            }
+            mWatermark = in.getLong();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read snapshot", e);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(TAG, "Corrupt snapshot", e);
+        }
+    }
+
+    private void replayJournal() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+
+        int validLength = 0;
+        ByteBuffer in = null;
+        try {
+            in = ByteBuffer.wrap(readFully(mJournalFile));
+            mJournalHeader = in.remaining() >= JOURNAL_HEADER_SIZE && in.getInt() == JOURNAL_MAGIC
+                    && in.getInt() == RunInfoCodec.VERSION;
+            if (mJournalHeader) {
+                mJournalBaseTime = in.getLong();
+                validLength = in.position();
+            } else {
+                Log.w(TAG, "Ignoring journal with unknown format");
+            }
+
+            while (mJournalHeader && in.remaining() >= FRAME_OVERHEAD) {
+                int start = in.position();
+                int length = in.getInt();
+                if (length <= 0 || length > in.remaining() - 4) {
+                    break;
+                }
+
+                mCrc.reset();
+                mCrc.update(in.array(), start + 4, length);
+                if ((int) mCrc.getValue() != in.getInt(start + 4 + length)) {
+                    break;
+                }
+
+                // the checksum matched, so the frame was written whole and every record in it is valid
+                in.limit(start + 4 + length);
+                while (in.hasRemaining()) {
+                    replayRecord(in);
+                    mJournalRecords++;
+                }
+                in.limit(in.capacity());
+                in.position(start + FRAME_OVERHEAD + length);
+                validLength = in.position();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to replay journal", e);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.e(TAG, "Corrupt journal record", e);
+        }
+
+        if (in != null && validLength < in.capacity()) {
+            // drop the torn tail, or the unknown format, so later appends stay readable
+            Log.w(TAG, "Journal truncated at " + validLength);
+            compact();
+        }
+    }
+
+    private void replayRecord(ByteBuffer in) {
+        byte op = in.get();
+        if (op == OP_PUT) {
+            mCodec.decode(in, mJournalBaseTime);
+            put(mCodec.componentId, mCodec.count, mCodec.lastExecution, mCodec.flags, mCodec.score);
+        } else if (op == OP_REMOVE) {
+            mCodec.decodeComponent(in);
+            remove(mCodec.componentId);
+        } else if (op == OP_WATERMARK) {
+            mWatermark = in.getLong();
+        } else {
+            throw new IllegalArgumentException("Unknown journal record " + op);
+        }
+    }
+
+    /**
+     * @param newJournal whether to replace the journal file by one starting with a header
+     */
+    private void append(boolean newJournal) throws IOException {
+        FileOutputStream out = new FileOutputStream(mJournalFile, !newJournal);
+        try {
+            if (newJournal) {
+                ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+                header.putInt(JOURNAL_MAGIC);
+                header.putInt(RunInfoCodec.VERSION);
+                header.putLong(mJournalBaseTime);
+                out.write(header.array());
+            }
+            out.write(mBuffer.array(), 0, mBuffer.position());
+            // a save is done once it survives a power loss, not when it reaches the page cache
+            out.getFD().sync();
+            mJournalHeader = true;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Starts the frame holding the records of one save, leaving room for its length.
+     *
+     * @return the start of the frame
+     */
+    private int beginFrame() {
+        mBuffer.clear();
+        ensureRemaining(FRAME_OVERHEAD);
+        mBuffer.position(4);
+        return 0;
+    }
+
+    private void endFrame(int start) {
+        int length = mBuffer.position() - start - 4;
+        mBuffer.putInt(start, length);
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), start + 4, length);
+        ensureRemaining(4);
+        mBuffer.putInt((int) mCrc.getValue());
+    }
+
+    private void writeRecord(byte op, int id) {
+        ensureRemaining(1 + mCodec.maxRecordSize(id));
+
+        mBuffer.put(op);
+        if (op == OP_PUT) {
+            mCodec.encode(mBuffer, id, mCounts[id], mLastExecutions[id], mFlags[id], mScores[id], mJournalBaseTime);
+        } else {
+            mCodec.encodeComponent(mBuffer, id);
+        }
+    }
+
+    private void writeWatermark() {
+        ensureRemaining(9);
+        mBuffer.put(OP_WATERMARK);
+        mBuffer.putLong(mWatermark);
+    }
+
+    private void ensureRemaining(int needed) {
+        if (mBuffer.remaining() >= needed) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + needed));
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+
+    /**
+     * @return true if the persisted state of the id changed
+     */
+    private boolean put(int id, int count, long lastExecution, int flags, double score) {
+        ensureCapacity(id + 1);
+        // the age is derived from the last execution, it is not persisted
+        byte storedFlags = (byte) ((flags & ~RunInfoStore.FLAGS_AGE) | RunInfoStore.FLAG_PRESENT);
+        boolean present = (mFlags[id] & RunInfoStore.FLAG_PRESENT) != 0;
+        // compared as persisted, so a score differing past the float precision is not written again
+        float storedScore = (float) score;
+        if (present && mCounts[id] == count && mLastExecutions[id] == lastExecution && mFlags[id] == storedFlags
+                && mScores[id] == storedScore) {
+            return false;
+        }
+
+        if (!present) {
+            mLiveRecords++;
+        }
+        mCapacity = Math.max(mCapacity, id + 1);
+        mCounts[id] = count;
+        mLastExecutions[id] = lastExecution;
+        mScores[id] = storedScore;
+        mFlags[id] = storedFlags;
+        return true;
+    }
+
+    /**
+     * @return true if the id was persisted
+     */
+    private boolean remove(int id) {
+        if (id >= mCapacity || (mFlags[id] & RunInfoStore.FLAG_PRESENT) == 0) {
+            return false;
+        }
+        mFlags[id] = 0;
+        mLiveRecords--;
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mCounts.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mCounts.length * 2);
+        mCounts = Arrays.copyOf(mCounts, newCapacity);
+        mLastExecutions = Arrays.copyOf(mLastExecutions, newCapacity);
+        mScores = Arrays.copyOf(mScores, newCapacity);
+        mFlags = Arrays.copyOf(mFlags, newCapacity);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    return Arrays.copyOf(data, read);
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
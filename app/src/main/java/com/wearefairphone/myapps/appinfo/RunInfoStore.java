@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.appinfo;
+
+import android.content.ComponentName;
+
+import java.util.Arrays;
+
+/**
+ * Struct of arrays holding the run data of every tracked application, addressed by the
+ * dense component id of the {@link ComponentPool}.
+ * <p>
+ * Counts, last executions, {@link Frecency} scores and flags live in primitive columns so ranking only touches
+ * a few contiguous arrays. {@link ApplicationRunInformation} objects are created lazily
+ * as views over a slot and are detached, keeping their last values, when the slot is freed.
+ */
+final class RunInfoStore {
+    static final int NONE = -1;
+
+    static final int FLAG_PRESENT = 1;
+    static final int FLAG_NEW_APP = 1 << 1;
+    static final int FLAG_PINNED_APP = 1 << 2;
+    static final int FLAG_UPDATED_APP = 1 << 3;
+    static final int FLAG_AGE_FREQUENT_USE = 1 << 4;
+    static final int FLAG_AGE_RARE_USE = 1 << 5;
+    static final int FLAGS_AGE = FLAG_AGE_FREQUENT_USE | FLAG_AGE_RARE_USE;
+
+    static final long NO_EXECUTION = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ComponentPool mPool;
+
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private long[] mLastExecutions = new long[INITIAL_CAPACITY];
+    private double[] mScores = new double[INITIAL_CAPACITY];
+    private byte[] mFlags = new byte[INITIAL_CAPACITY];
+    private ApplicationRunInformation[] mViews = new ApplicationRunInformation[INITIAL_CAPACITY];
+
+    // one past the highest id ever added
+    private int mCapacity;
+    private int mSize;
+
+    RunInfoStore(ComponentPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Starts tracking the component id with a zero count and no execution.
+     */
+    void add(int id) {
+        if (contains(id)) {
+            return;
+        }
+
+        ensureCapacity(id + 1);
+        mCapacity = Math.max(mCapacity, id + 1);
+        mCounts[id] = 0;
+        mLastExecutions[id] = NO_EXECUTION;
+        mScores[id] = Frecency.NO_SCORE;
+        mFlags[id] = FLAG_PRESENT;
+        mSize++;
+    }
+
+    /**
+     * Frees the slot. A view handed out for it keeps the values it had at this point.
+     */
+    void remove(int id) {
+        if (!contains(id)) {
+            return;
+        }
+
+        ApplicationRunInformation view = mViews[id];
+        if (view != null) {
+            view.detach();
+            mViews[id] = null;
+        }
+
+        mFlags[id] = 0;
+        mSize--;
+    }
+
+    void clear() {
+        for (int id = 0; id < mCapacity; id++) {
+            if (mViews[id] != null) {
+                mViews[id].detach();
+            }
+        }
+        Arrays.fill(mViews, null);
+        Arrays.fill(mFlags, (byte) 0);
+        mCapacity = 0;
+        mSize = 0;
+    }
+
+    boolean contains(int id) {
+        return id >= 0 && id < mCapacity && (mFlags[id] & FLAG_PRESENT) != 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return one past the highest tracked id, for scans over every slot
+     */
+    int capacity() {
+        return mCapacity;
+    }
+
+    ComponentName getComponentName(int id) {
+        return mPool.getComponentName(id);
+    }
+
+    int getCount(int id) {
+        return mCounts[id];
+    }
+
+    void setCount(int id, int count) {
+        mCounts[id] = count;
+    }
+
+    long getLastExecution(int id) {
+        return mLastExecutions[id];
+    }
+
+    void setLastExecution(int id, long lastExecution) {
+        mLastExecutions[id] = lastExecution;
+    }
+
+    /**
+     * @return the {@link Frecency} score as of the last execution
+     */
+    double getScore(int id) {
+        return mScores[id];
+    }
+
+    void setScore(int id, double score) {
+        mScores[id] = score;
+    }
+
+    int getFlags(int id) {
+        return mFlags[id];
+    }
+
+    void setFlags(int id, int flags) {
+        mFlags[id] = (byte) (flags | FLAG_PRESENT);
+    }
+
+    /**
+     * @return the shared view over the slot, created on first use
+     */
+    ApplicationRunInformation view(int id) {
+        ApplicationRunInformation view = mViews[id];
+        if (view == null) {
+            view = new ApplicationRunInformation(this, id);
+            mViews[id] = view;
+        }
+        return view;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mCounts.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mCounts.length * 2);
+        mCounts = Arrays.copyOf(mCounts, newCapacity);
+        mLastExecutions = Arrays.copyOf(mLastExecutions, newCapacity);
+        mScores = Arrays.copyOf(mScores, newCapacity);
+        mFlags = Arrays.copyOf(mFlags, newCapacity);
+        mViews = Arrays.copyOf(mViews, newCapacity);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * Square ARGB bitmaps kept for reuse, bucketed by size.
+ * <p>
+ * Icons only leave the process as files, so a bitmap can be acquired again as soon as
+ * it is released.
+ */
+final class BitmapPool {
+    private static final int MAX_PER_BUCKET = 4;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final SparseArray<ArrayDeque<Bitmap>> mBuckets = new SparseArray<>();
+
+    /**
+     * @return a mutable size x size bitmap with undefined content, or null if none is free
+     */
+    Bitmap acquire(int size) {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            return null;
+        }
+        Bitmap bitmap = bucket.poll();
+        if (bitmap != null && (bitmap.getWidth() != size || bitmap.getHeight() != size)) {
+            bitmap.reconfigure(size, size, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    void release(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        // bucketed by the size it was allocated for, decoding into it may have changed its dimensions
+        int size = (int) Math.sqrt(bitmap.getAllocationByteCount() / BYTES_PER_PIXEL);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>(MAX_PER_BUCKET);
+            mBuckets.put(size, bucket);
+        }
+        if (bucket.size() < MAX_PER_BUCKET) {
+            bucket.add(bitmap);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.wearefairphone.myapps.R;
+import com.wearefairphone.myapps.appinfo.ComponentPool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Activity icons rendered at the widget icon size, in two tiers.
+ * <p>
+ * The memory tier is an LRU of at most {@link #MAX_ENTRIES} file names, addressed by
+ * {@link ComponentPool} id and counted per entry rather than in bytes. The disk tier holds
+ * pre-scaled PNGs named after the component, the last update time of its package, the
+ * screen density and the icon size, so a new process renders without loading and scaling
+ * the icons again, and an updated package never matches an old file. Writing an icon
+ * deletes the files of the same component from other generations. Both tiers drop a
+ * package on {@link #invalidate(String)}, called from the package broadcasts.
+ * <p>
+ * Icons are drawn into bitmaps of an {@link IconRasterizer}, which gets each one back as
+ * soon as it is written. The widget only asks for {@link #getIconUri(ComponentName) URIs}
+ * served by the {@link IconProvider}, so the memory tier only remembers which files are on disk.
+ */
+public final class IconCache {
+    private static final String TAG = IconCache.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "icons";
+    private static final String FILE_SUFFIX = ".png";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // neither package nor class names can contain it, so it ends each part of a file name
+    private static final char SEPARATOR = '-';
+    private static final int MAX_ENTRIES = 256;
+
+    private static IconCache sInstance;
+
+    private static final class Entry {
+        // written to disk when the entry was made
+        final String fileName;
+        final int density;
+        final int size;
+
+        Entry(String fileName, int density, int size) {
+            this.fileName = fileName;
+            this.density = density;
+            this.size = size;
+        }
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final LruCache<Integer, Entry> mMemory;
+    private final IconRasterizer mRasterizer = new IconRasterizer();
+    // whether an icon was skipped for the allocation budget since the refresh started
+    private boolean mIconsSkipped;
+
+    public static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private IconCache(Context context) {
+        mContext = context;
+        mDirectory = getDirectory(context);
+        mMemory = new LruCache<>(MAX_ENTRIES);
+    }
+
+    static File getDirectory(Context context) {
+        return new File(context.getCacheDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Makes sure the icon of the activity is rendered on disk, without keeping it in memory.
+     *
+     * @return the {@link IconProvider} URI of the icon, or null if it cannot be rendered; see
+     * {@link #hasSkippedIcons()} for icons left to a later refresh
+     * @throws NameNotFoundException if the activity does not exist
+     */
+    public synchronized Uri getIconUri(ComponentName component) throws NameNotFoundException {
+        int id = ComponentPool.getInstance().intern(component);
+        int density = getDensity();
+        int size = getSize();
+
+        Entry entry = getEntry(id, density, size);
+        // the system may clear the cache directory, a stat is still far cheaper than rendering
+        if (entry != null && new File(mDirectory, entry.fileName).exists()) {
+            return IconProvider.getUri(entry.fileName);
+        }
+
+        PackageManager pm = mContext.getPackageManager();
+        String fileName = entry != null ? entry.fileName : getFileName(pm, component, density, size);
+        File file = new File(mDirectory, fileName);
+
+        if (!file.exists()) {
+            Bitmap icon = mRasterizer.rasterize(pm.getActivityIcon(component), size);
+            if (icon == null) {
+                mIconsSkipped = true;
+                return null;
+            }
+            boolean written = write(icon, file);
+            // only the file is handed out, the bitmap can be reused right away
+            mRasterizer.recycle(icon);
+            if (!written) {
+                return null;
+            }
+            deleteOtherGenerations(component, fileName);
+        }
+
+        mMemory.put(id, new Entry(fileName, density, size));
+        return IconProvider.getUri(fileName);
+    }
+
+    private Entry getEntry(int id, int density, int size) {
+        Entry entry = mMemory.get(id);
+        return entry != null && entry.density == density && entry.size == size ? entry : null;
+    }
+
+    private int getDensity() {
+        return mContext.getResources().getDisplayMetrics().densityDpi;
+    }
+
+    private int getSize() {
+        return (int) mContext.getResources().getDimension(R.dimen.edit_favorites_icon_size);
+    }
+
+    /**
+     * Starts a widget refresh, renewing the bitmap allocation budget to one new bitmap per
+     * row.
+     *
+     * @param rowCount the number of rows the refresh renders
+     */
+    public synchronized void startRefresh(int rowCount) {
+        mRasterizer.startRefresh(rowCount);
+        mIconsSkipped = false;
+    }
+
+    /**
+     * @return true if an icon was left out for the allocation budget since the refresh started,
+     * the rows showing it need another refresh
+     */
+    public synchronized boolean hasSkippedIcons() {
+        return mIconsSkipped;
+    }
+
+    /**
+     * Drops the icons of the package from both tiers.
+     */
+    public synchronized void invalidate(String packageName) {
+        ComponentPool pool = ComponentPool.getInstance();
+        for (Integer id : mMemory.snapshot().keySet()) {
+            if (pool.getPackageName(id).equals(packageName)) {
+                mMemory.remove(id);
+            }
+        }
+
+        String prefix = packageName + SEPARATOR;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix) && !file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the icon next to the file and renames it, so the widget host never reads a partial PNG.
+     *
+     * @return true if the file was written
+     */
+    private boolean write(Bitmap icon, File file) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Failed to create " + mDirectory);
+            return false;
+        }
+
+        File tempFile = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(tempFile);
+            written = icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close " + file, e);
+                    written = false;
+                }
+            }
+        }
+
+        if (written && tempFile.renameTo(file)) {
+            return true;
+        }
+        if (tempFile.exists() && !tempFile.delete()) {
+            Log.w(TAG, "Failed to delete " + tempFile);
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the icons of the component written for another package update, density or size.
+     */
+    private void deleteOtherGenerations(ComponentName component, String fileName) {
+        String prefix = getComponentPrefix(component);
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && !name.equals(fileName) && !file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    private static String getFileName(PackageManager pm, ComponentName component, int density, int size) throws NameNotFoundException {
+        long lastUpdateTime = pm.getPackageInfo(component.getPackageName(), 0).lastUpdateTime;
+        return getComponentPrefix(component) + lastUpdateTime + SEPARATOR + density + SEPARATOR + size + FILE_SUFFIX;
+    }
+
+    private static String getComponentPrefix(ComponentName component) {
+        // the whole class name, no two activities share a file; a hash of it could
+        return component.getPackageName() + SEPARATOR + component.getShortClassName() + SEPARATOR;
+    }
+}
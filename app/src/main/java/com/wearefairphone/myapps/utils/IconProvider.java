@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Serves the pre-rendered icons of the {@link IconCache} to the widget host, so the widget
+ * updates only carry URIs and the host reads the PNGs straight from their files.
+ * <p>
+ * The provider is not exported: the widget factory grants the host read access to the URI
+ * of each row it binds. It is read only, and only opens files of the icon directory.
+ */
+public class IconProvider extends ContentProvider {
+    static final String AUTHORITY = "com.wearefairphone.myapps.icons";
+
+    private static final String MIME_TYPE = "image/png";
+    private static final String READ_ONLY = "r";
+
+    private File mDirectory;
+
+    static Uri getUri(String fileName) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(fileName)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        mDirectory = IconCache.getDirectory(getContext());
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!READ_ONLY.equals(mode)) {
+            throw new FileNotFoundException("Icons are read only: " + uri);
+        }
+
+        String fileName = uri.getLastPathSegment();
+        if (fileName == null || uri.getPathSegments().size() != 1) {
+            throw new FileNotFoundException("Not an icon: " + uri);
+        }
+
+        File file = new File(mDirectory, fileName);
+        try {
+            // the segment is decoded, refuse anything resolving outside of the icon directory
+            if (!mDirectory.getCanonicalFile().equals(file.getCanonicalFile().getParentFile())) {
+                throw new FileNotFoundException("Not an icon: " + uri);
+            }
+        } catch (IOException e) {
+            throw new FileNotFoundException("Not an icon: " + uri);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Icons are read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Icons are read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Icons are read only");
+    }
+}
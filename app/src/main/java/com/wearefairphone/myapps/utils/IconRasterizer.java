@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+/**
+ * Draws any {@link Drawable}, bitmap, vector or adaptive, centered into a square bitmap
+ * taken from a {@link BitmapPool}.
+ * <p>
+ * A refresh may allocate at most as many new bitmaps as it renders rows; past that budget
+ * icons that need a new bitmap are skipped and picked up by a later refresh.
+ */
+final class IconRasterizer {
+    private static final String TAG = IconRasterizer.class.getSimpleName();
+
+    private final BitmapPool mPool = new BitmapPool();
+    private final Canvas mCanvas = new Canvas();
+    private int mAllocationsLeft;
+
+    /**
+     * @param allocationBudget the number of new bitmaps the refresh may allocate
+     */
+    void startRefresh(int allocationBudget) {
+        mAllocationsLeft = allocationBudget;
+    }
+
+    /**
+     * @return the drawable scaled into a size x size bitmap keeping its aspect ratio,
+     * or null if the allocation budget of this refresh is spent
+     */
+    Bitmap rasterize(Drawable drawable, int size) {
+        Bitmap bitmap = obtain(size);
+        if (bitmap == null) {
+            return null;
+        }
+
+        int w = drawable.getIntrinsicWidth();
+        int h = drawable.getIntrinsicHeight();
+        // vector and color drawables may have no intrinsic size, they fill the square
+        int ws = w <= 0 || h <= 0 || w >= h ? size : (int) (size * (w / (double) h));
+        int hs = w <= 0 || h <= 0 || h >= w ? size : (int) (size * (h / (double) w));
+        int left = (size - ws) / 2;
+        int top = (size - hs) / 2;
+
+        bitmap.eraseColor(Color.TRANSPARENT);
+        mCanvas.setBitmap(bitmap);
+        drawable.setBounds(left, top, left + ws, top + hs);
+        drawable.draw(mCanvas);
+        mCanvas.setBitmap(null);
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap no longer in use back to the pool.
+     */
+    void recycle(Bitmap bitmap) {
+        mPool.release(bitmap);
+    }
+
+    private Bitmap obtain(int size) {
+        Bitmap bitmap = mPool.acquire(size);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        if (mAllocationsLeft == 0) {
+            Log.d(TAG, "Bitmap allocation budget spent for this refresh");
+            return null;
+        }
+        mAllocationsLeft--;
+        return Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    }
+}
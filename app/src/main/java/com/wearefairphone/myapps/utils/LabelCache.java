@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import android.content.ComponentCallbacks;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Configuration;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.wearefairphone.myapps.appinfo.ComponentPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Activity labels, addressed by {@link ComponentPool} id and persisted with the last update
+ * time of their package and the locale they were loaded in.
+ * <p>
+ * A label loaded in this process is returned without any PackageManager call; one read
+ * from disk is checked once against the last update time of its package. The package
+ * broadcasts drop a package through {@link #invalidate(String)} and a locale change drops
+ * everything.
+ */
+public final class LabelCache implements ComponentCallbacks {
+    private static final String TAG = LabelCache.class.getSimpleName();
+
+    private static final String FILE_NAME = "labels";
+    private static final int MAGIC = 0x4D414C42; // MALB
+    private static final int VERSION = 1;
+
+    private static LabelCache sInstance;
+
+    private static final class Entry {
+        final String label;
+        final long lastUpdateTime;
+        // whether the last update time was checked against the package manager in this process
+        boolean verified;
+
+        Entry(String label, long lastUpdateTime, boolean verified) {
+            this.label = label;
+            this.lastUpdateTime = lastUpdateTime;
+            this.verified = verified;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final ComponentPool mPool = ComponentPool.getInstance();
+
+    private final SparseArray<Entry> mLabels = new SparseArray<>();
+    private Locale mLocale;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    public static synchronized LabelCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LabelCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LabelCache(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        mLocale = context.getResources().getConfiguration().locale;
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * @throws NameNotFoundException if the activity does not exist
+     */
+    public synchronized CharSequence getLabel(ComponentName component) throws NameNotFoundException {
+        ensureLoaded();
+
+        int id = mPool.intern(component);
+        Entry entry = mLabels.get(id);
+        PackageManager pm = mContext.getPackageManager();
+
+        if (entry != null && !entry.verified) {
+            long lastUpdateTime = pm.getPackageInfo(component.getPackageName(), 0).lastUpdateTime;
+            if (lastUpdateTime == entry.lastUpdateTime) {
+                entry.verified = true;
+            } else {
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            return entry.label;
+        }
+
+        long lastUpdateTime = pm.getPackageInfo(component.getPackageName(), 0).lastUpdateTime;
+        String label = pm.getActivityInfo(component, 0).loadLabel(pm).toString();
+        mLabels.put(id, new Entry(label, lastUpdateTime, true));
+        mDirty = true;
+        return label;
+    }
+
+    /**
+     * Drops the labels of the package.
+     */
+    public synchronized void invalidate(String packageName) {
+        for (int i = mLabels.size() - 1; i >= 0; i--) {
+            if (mPool.getPackageName(mLabels.keyAt(i)).equals(packageName)) {
+                mLabels.removeAt(i);
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the labels loaded since the last save.
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mLocale.toString());
+            out.writeInt(mLabels.size());
+            for (int i = 0; i < mLabels.size(); i++) {
+                ComponentName component = mPool.getComponentName(mLabels.keyAt(i));
+                Entry entry = mLabels.valueAt(i);
+                out.writeUTF(component.getPackageName());
+                out.writeUTF(component.getClassName());
+                out.writeLong(entry.lastUpdateTime);
+                out.writeUTF(entry.label);
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write labels", e);
+            mFile.failWrite(stream);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(mFile.readFully()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring labels with unknown format");
+                return;
+            }
+            if (!mLocale.toString().equals(in.readUTF())) {
+                // loaded in another locale
+                mDirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = mPool.intern(in.readUTF(), in.readUTF());
+                long lastUpdateTime = in.readLong();
+                mLabels.put(id, new Entry(in.readUTF(), lastUpdateTime, false));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read labels", e);
+            mLabels.clear();
+        }
+    }
+
+    @Override
+    public synchronized void onConfigurationChanged(Configuration newConfig) {
+        if (newConfig.locale != null && !newConfig.locale.equals(mLocale)) {
+            Log.d(TAG, "Locale changed to " + newConfig.locale);
+            mLocale = newConfig.locale;
+            mLabels.clear();
+            mDirty = true;
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import com.wearefairphone.myapps.appinfo.ApplicationRunInfoManager;
+import com.wearefairphone.myapps.appinfo.ComponentPool;
+
+import java.util.Arrays;
+
+/**
+ * Derives launch counts from the foreground transitions of the usage events.
+ * <p>
+ * An application is launched when it comes to the foreground after another one did, or
+ * after it spent more than the session gap in the background. Switching activities inside
+ * an application, or turning the screen off and on, is not a new launch. Counters are
+ * primitive columns addressed by {@link ComponentPool} id, and the foreground state is kept
+ * across batches so a session cut by the watermark is not counted twice.
+ */
+public final class LaunchCounter {
+    public static final long DEFAULT_SESSION_GAP_MILLIS = 30 * 1000;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final long mSessionGapMillis;
+
+    // counts since the last drain, by component id
+    private int[] mLaunches = new int[INITIAL_CAPACITY];
+    private long[] mLastForeground = new long[INITIAL_CAPACITY];
+    // ids with pending counts, each listed once
+    private int[] mTouched = new int[INITIAL_CAPACITY];
+    private int mTouchedCount;
+
+    // application that came to the foreground last, NONE for one that is not launchable
+    private int mLastId = ComponentPool.NONE;
+    private boolean mInForeground;
+    private long mBackgroundTime = NEVER;
+
+    public LaunchCounter() {
+        this(DEFAULT_SESSION_GAP_MILLIS);
+    }
+
+    public LaunchCounter(long sessionGapMillis) {
+        mSessionGapMillis = sessionGapMillis;
+        Arrays.fill(mLastForeground, NEVER);
+    }
+
+    /**
+     * @param id the launchable component of the package, or {@link ComponentPool#NONE}
+     */
+    public void onForeground(int id, long timeStamp) {
+        boolean sameSession = id == mLastId
+                && (mInForeground || (mBackgroundTime != NEVER && timeStamp - mBackgroundTime < mSessionGapMillis));
+        mLastId = id;
+        mInForeground = true;
+        if (id == ComponentPool.NONE) {
+            return;
+        }
+
+        touch(id);
+        if (!sameSession) {
+            mLaunches[id]++;
+        }
+        mLastForeground[id] = Math.max(mLastForeground[id], timeStamp);
+    }
+
+    public void onBackground(int id, long timeStamp) {
+        if (id == mLastId) {
+            mInForeground = false;
+            mBackgroundTime = timeStamp;
+        }
+    }
+
+    public int getLaunches(int id) {
+        return id < mLaunches.length ? mLaunches[id] : 0;
+    }
+
+    /**
+     * @return the time the application was last seen in the foreground, or Long.MIN_VALUE
+     */
+    public long getLastForeground(int id) {
+        return id < mLastForeground.length ? mLastForeground[id] : NEVER;
+    }
+
+    /**
+     * Folds the pending counts into the manager and resets them, keeping the foreground state.
+     *
+     * @return the number of launches folded in
+     */
+    public int drainTo(ApplicationRunInfoManager manager) {
+        int launches = 0;
+        for (int i = 0; i < mTouchedCount; i++) {
+            int id = mTouched[i];
+            manager.applicationLaunched(id, mLaunches[id], mLastForeground[id]);
+            launches += mLaunches[id];
+        }
+        clear();
+        return launches;
+    }
+
+    /**
+     * Resets the pending counts, keeping the foreground state.
+     */
+    public void clear() {
+        for (int i = 0; i < mTouchedCount; i++) {
+            int id = mTouched[i];
+            mLaunches[id] = 0;
+            mLastForeground[id] = NEVER;
+        }
+        mTouchedCount = 0;
+    }
+
+    private void touch(int id) {
+        if (id >= mLaunches.length) {
+            int capacity = Math.max(id + 1, mLaunches.length * 2);
+            int oldCapacity = mLastForeground.length;
+            mLaunches = Arrays.copyOf(mLaunches, capacity);
+            mLastForeground = Arrays.copyOf(mLastForeground, capacity);
+            Arrays.fill(mLastForeground, oldCapacity, capacity, NEVER);
+        }
+        if (mLastForeground[id] != NEVER) {
+            return;
+        }
+
+        if (mTouchedCount == mTouched.length) {
+            mTouched = Arrays.copyOf(mTouched, mTouchedCount * 2);
+        }
+        mTouched[mTouchedCount++] = id;
+    }
+}
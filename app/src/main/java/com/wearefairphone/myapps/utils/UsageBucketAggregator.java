@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import java.util.Arrays;
+
+/**
+ * Merges the per interval buckets returned by the usage stats into one entry per
+ * application, in a single pass over a primitive column addressed by component id:
+ * the latest use wins.
+ */
+final class UsageBucketAggregator {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private long[] mLastTimeUsed = new long[INITIAL_CAPACITY];
+    // ids in the order they were first seen, each listed once
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    UsageBucketAggregator() {
+        Arrays.fill(mLastTimeUsed, NEVER);
+    }
+
+    void add(int id, long lastTimeUsed) {
+        if (id >= mLastTimeUsed.length) {
+            int oldCapacity = mLastTimeUsed.length;
+            int capacity = Math.max(id + 1, oldCapacity * 2);
+            mLastTimeUsed = Arrays.copyOf(mLastTimeUsed, capacity);
+            Arrays.fill(mLastTimeUsed, oldCapacity, capacity, NEVER);
+        }
+
+        if (mLastTimeUsed[id] == NEVER) {
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+            }
+            mIds[mSize++] = id;
+            mLastTimeUsed[id] = lastTimeUsed;
+        } else {
+            mLastTimeUsed[id] = Math.max(mLastTimeUsed[id], lastTimeUsed);
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int getId(int position) {
+        return mIds[position];
+    }
+
+    long getLastTimeUsed(int id) {
+        return mLastTimeUsed[id];
+    }
+}
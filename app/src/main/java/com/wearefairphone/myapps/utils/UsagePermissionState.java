@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.utils;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+/**
+ * Caches whether the usage statistics can be read.
+ * <p>
+ * The state is computed once and then kept up to date by watching the usage stats app op,
+ * so checking it is a field read. A {@link SecurityException} thrown by a query is
+ * reported back, as the op can be revoked between the change and its callback.
+ */
+public final class UsagePermissionState {
+    private static final String TAG = UsagePermissionState.class.getSimpleName();
+
+    /**
+     * Notified, on the thread delivering the app op change, when the permission is granted or revoked.
+     */
+    public interface Listener {
+        void onUsagePermissionChanged(Context context, boolean granted);
+    }
+
+    private static UsagePermissionState sInstance;
+
+    private final Context mContext;
+    private final AppOpsManager mAppOps;
+    private volatile boolean mGranted;
+    private volatile Listener mListener;
+
+    private final AppOpsManager.OnOpChangedListener mOpListener = new AppOpsManager.OnOpChangedListener() {
+        @Override
+        public void onOpChanged(String op, String packageName) {
+            if (AppOpsManager.OPSTR_GET_USAGE_STATS.equals(op) && mContext.getPackageName().equals(packageName)) {
+                update(check());
+            }
+        }
+    };
+
+    public static synchronized UsagePermissionState getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UsagePermissionState(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UsagePermissionState(Context context) {
+        mContext = context;
+        mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        mGranted = check();
+        mAppOps.startWatchingMode(AppOpsManager.OPSTR_GET_USAGE_STATS, context.getPackageName(), mOpListener);
+    }
+
+    public boolean isGranted() {
+        return mGranted;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Records that a usage stats query was refused.
+     */
+    public void onAccessDenied() {
+        update(false);
+    }
+
+    private boolean check() {
+        int mode = mAppOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS,
+                android.os.Process.myUid(), mContext.getPackageName());
+
+        // the default mode leaves the decision to the permission itself
+        if (mode == AppOpsManager.MODE_DEFAULT) {
+            return mContext.checkCallingOrSelfPermission(Manifest.permission.PACKAGE_USAGE_STATS)
+                    == PackageManager.PERMISSION_GRANTED;
+        }
+        return mode == AppOpsManager.MODE_ALLOWED;
+    }
+
+    private void update(boolean granted) {
+        if (granted == mGranted) {
+            return;
+        }
+        mGranted = granted;
+        Log.d(TAG, "Usage stats permission " + (granted ? "granted" : "revoked"));
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onUsagePermissionChanged(mContext, granted);
+        }
+    }
+}
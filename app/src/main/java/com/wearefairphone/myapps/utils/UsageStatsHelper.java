@@ -16,19 +16,17 @@
  */
 package com.wearefairphone.myapps.utils;
 
-import android.app.AppOpsManager;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.wearefairphone.myapps.appinfo.ApplicationRunInfoManager;
 import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.appinfo.ComponentPool;
+import com.wearefairphone.myapps.appinfo.LaunchableIndex;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -42,7 +40,7 @@ import java.util.List;
 public class UsageStatsHelper {
 
     private static final int USAGE_STATS_QUERY_TIME_FRAME = 604800000;
-    private static final int NO_LAUNCH_COUNT_FOUND = -1;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
     private static final String TAG = UsageStatsHelper.class.getSimpleName();
 
 
@@ -52,13 +50,7 @@ public class UsageStatsHelper {
      * @return {@code true}, when permission is granted, otherwise {@code false}.
      */
     public boolean hasPermission(Context context) {
-        AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
-        int mode = appOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS,
-                android.os.Process.myUid(), context.getPackageName());
-
-        List<ApplicationRunInformation> usageStats = getUsageStats(context);
-        return usageStats.size() != 0 && mode == AppOpsManager.MODE_ALLOWED;
-
+        return UsagePermissionState.getInstance(context).isGranted();
     }
 
     /**
@@ -67,59 +59,106 @@ public class UsageStatsHelper {
      * @return {@code List<ApplicationRunInformation>} with usage statistics of recently used apps.
      */
     public List<ApplicationRunInformation> getUsageStats(Context context) {
-        List<ApplicationRunInformation> usageStats = new ArrayList<>();
+        return getUsageStats(context, new LaunchCounter(), System.currentTimeMillis());
+    }
 
+    /**
+     * Same as {@link #getUsageStats(Context)}, counting launches with the given counter so it
+     * keeps the foreground state for the events read after this window.
+     *
+     * @param time end of the window, the watermark events are read from afterwards
+     */
+    public List<ApplicationRunInformation> getUsageStats(Context context, LaunchCounter counter, long time) {
         final UsageStatsManager usageStatsManager = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
-        long time = System.currentTimeMillis();
-        List<UsageStats> queryUsageStats = usageStatsManager.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, time - USAGE_STATS_QUERY_TIME_FRAME, time);
-
-        for (UsageStats stats : queryUsageStats) {
-            final PackageManager pm = context.getApplicationContext().getPackageManager();
-            Intent launchIntent = pm.getLaunchIntentForPackage(stats.getPackageName());
-            if (launchIntent != null) {
-                ApplicationRunInformation appInfo = getApplicationRunInformation(stats, launchIntent.getComponent());
-                usageStats.add(appInfo);
+        long begin = time - USAGE_STATS_QUERY_TIME_FRAME;
+        List<UsageStats> queryUsageStats = usageStatsManager.queryUsageStats(getQueryInterval(USAGE_STATS_QUERY_TIME_FRAME), begin, time);
+
+        // a package shows up once per bucket, merge them before building the run information
+        UsageBucketAggregator aggregator = new UsageBucketAggregator();
+        if (queryUsageStats != null) {
+            for (UsageStats stats : queryUsageStats) {
+                // coarse buckets reach further back than the window
+                if (stats.getLastTimeUsed() < begin) {
+                    continue;
+                }
+                int componentId = getLaunchComponent(context, stats.getPackageName());
+                if (componentId != ComponentPool.NONE) {
+                    aggregator.add(componentId, stats.getLastTimeUsed());
+                }
             }
         }
 
+        // the usage stats carry no launch count, derive them from the events of the same window
+        counter.clear();
+        countLaunches(context, counter, begin, time);
+
+        List<ApplicationRunInformation> usageStats = new ArrayList<>(aggregator.size());
+        for (int i = 0; i < aggregator.size(); i++) {
+            int componentId = aggregator.getId(i);
+            ApplicationRunInformation appInfo = new ApplicationRunInformation(componentId, counter.getLaunches(componentId));
+            appInfo.setLastExecution(new Date(Math.max(aggregator.getLastTimeUsed(componentId), counter.getLastForeground(componentId))));
+            usageStats.add(appInfo);
+        }
+        counter.clear();
+
         return usageStats;
     }
 
-    @NonNull
-    private ApplicationRunInformation getApplicationRunInformation(UsageStats stats, ComponentName componentName) {
-        int launchCount = getLaunchCount(stats);
-
-        if (launchCount == NO_LAUNCH_COUNT_FOUND) {
-            // This is an ugly hack, since we cannot get the amount of launches for an app.
-            // Currently we abuse the total time in foreground and make sure it is not exceeding an int.
-            launchCount = stats.getTotalTimeInForeground() > Integer.MAX_VALUE
-                    ? Integer.MAX_VALUE : (int) stats.getTotalTimeInForeground();
+    /**
+     * Picks the coarsest interval whose buckets still fit the window, so a package comes back
+     * in one or two buckets instead of one per day. queryAndAggregateUsageStats is not used:
+     * it queries the finest interval available and merges into a map of new objects.
+     */
+    static int getQueryInterval(long windowMillis) {
+        if (windowMillis <= DAY_IN_MILLIS) {
+            return UsageStatsManager.INTERVAL_DAILY;
+        } else if (windowMillis <= 7 * DAY_IN_MILLIS) {
+            return UsageStatsManager.INTERVAL_WEEKLY;
+        } else if (windowMillis <= 31 * DAY_IN_MILLIS) {
+            return UsageStatsManager.INTERVAL_MONTHLY;
         }
-
-        ApplicationRunInformation appInfo = new ApplicationRunInformation(componentName, launchCount);
-        appInfo.setLastExecution(new Date(stats.getLastTimeUsed()));
-        return appInfo;
+        return UsageStatsManager.INTERVAL_YEARLY;
     }
 
     /**
-     * Try to access launch count via reflection
-     * @param stats UsageStats of certain app
-     * @return determined launch count of app
+     * Folds the launches since the watermark into the run information, so the cost of a
+     * refresh follows the number of new events instead of the length of the history.
+     *
+     * @param since time of the first event to read, the watermark of the previous call
+     * @param until time up to which events are read, the next watermark
+     * @return the number of launches folded in
      */
-    private int getLaunchCount(UsageStats stats) {
-        try {
-            Field mLaunchCount = UsageStats.class.getDeclaredField("mLaunchCount");
-            int launchCount = (Integer) mLaunchCount.get(stats);
-
-            Log.d(TAG, "Launch count for " + stats.getPackageName() + ": " + launchCount);
-
-            return launchCount;
-        } catch (NoSuchFieldException e) {
-            Log.d(TAG, "Could not find field", e);
-        } catch (IllegalAccessException e) {
-            Log.d(TAG, "Could not access field", e);
+    public int ingestUsageEvents(Context context, ApplicationRunInfoManager manager, LaunchCounter counter, long since, long until) {
+        countLaunches(context, counter, since, until);
+        int launches = counter.drainTo(manager);
+
+        Log.d(TAG, "Ingested " + launches + " launches since " + since);
+        return launches;
+    }
+
+    private void countLaunches(Context context, LaunchCounter counter, long since, long until) {
+        final UsageStatsManager usageStatsManager = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
+        UsageEvents events = usageStatsManager.queryEvents(since, until);
+        if (events == null) {
+            return;
         }
 
-        return NO_LAUNCH_COUNT_FOUND;
+        UsageEvents.Event event = new UsageEvents.Event();
+        while (events.getNextEvent(event)) {
+            int type = event.getEventType();
+            if (type == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                counter.onForeground(getLaunchComponent(context, event.getPackageName()), event.getTimeStamp());
+            } else if (type == UsageEvents.Event.MOVE_TO_BACKGROUND) {
+                counter.onBackground(getLaunchComponent(context, event.getPackageName()), event.getTimeStamp());
+            }
+        }
+    }
+
+    /**
+     * @return the id of the launch component of the package, or {@link ComponentPool#NONE}
+     * if it has none
+     */
+    private static int getLaunchComponent(Context context, String packageName) {
+        return LaunchableIndex.getInstance(context).getLaunchComponent(packageName);
     }
 }
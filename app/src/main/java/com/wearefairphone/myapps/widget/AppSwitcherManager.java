@@ -20,10 +20,21 @@ import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.wearefairphone.myapps.appinfo.ApplicationRunInfoManager;
 import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.appinfo.ComponentPool;
+import com.wearefairphone.myapps.appinfo.LaunchAccumulator;
+import com.wearefairphone.myapps.appinfo.PersistenceScheduler;
+import com.wearefairphone.myapps.appinfo.RankingPolicy;
+import com.wearefairphone.myapps.appinfo.RankingSnapshot;
+import com.wearefairphone.myapps.appinfo.RunInfoJournal;
+import com.wearefairphone.myapps.R;
+import com.wearefairphone.myapps.utils.LaunchCounter;
+import com.wearefairphone.myapps.utils.UsagePermissionState;
 import com.wearefairphone.myapps.utils.UsageStatsHelper;
 
 import java.util.ArrayList;
@@ -34,8 +45,30 @@ class AppSwitcherManager {
     private static final String PREFS_APP_SWITCHER_APPS_DATA = "com.fairphone.fplauncher3.PREFS_APP_SWITCHER_APPS_DATA";
 
     private static final ApplicationRunInfoManager _instance = new ApplicationRunInfoManager(true);
+    private static PersistenceScheduler sPersistence;
+    // whether the persisted run information was read back into the model in this process
+    private static boolean sRestored;
+    // keeps the foreground state between two ingestions
+    private static final LaunchCounter sLaunchCounter = new LaunchCounter();
+    // launches reported by the launcher, drained by the refresh
+    private static final LaunchAccumulator sLaunches = new LaunchAccumulator();
+    // the ranking last rendered, read by the widget list factories; null until this process ranked the apps
+    private static volatile RankingSnapshot sRendered;
 
-    static synchronized ApplicationRunInfoManager getInstance() {
+    // renders the widgets again once the usage stats can be read, on the main thread
+    private static final UsagePermissionState.Listener sPermissionListener = new UsagePermissionState.Listener() {
+        @Override
+        public void onUsagePermissionChanged(final Context context, boolean granted) {
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    updateAppSwitcherWidgets(context);
+                }
+            });
+        }
+    };
+
+    static ApplicationRunInfoManager getInstance() {
         return _instance;
     }
 
@@ -113,38 +146,122 @@ class AppSwitcherManager {
 //
 //	}
 
+    private static synchronized PersistenceScheduler getPersistence(Context context) {
+        if (sPersistence == null) {
+            long window = context.getResources().getInteger(R.integer.app_switcher_persist_window_ms);
+            sPersistence = new PersistenceScheduler(context, PREFS_APP_SWITCHER_APPS_DATA,
+                    getInstance(), window);
+        }
+        return sPersistence;
+    }
+
     private static void saveAppSwitcherData(Context context) {
         Log.d(TAG, "saveAppSwitcherData");
-        ApplicationRunInformation.persistAppRunInfo(context,
-                PREFS_APP_SWITCHER_APPS_DATA, AppSwitcherManager.getInstance()
-                        .getAllAppRunInfo());
+        // only the applications changed since the last save are written, in the background
+        getPersistence(context).schedule();
+    }
+
+    /**
+     * Writes the scheduled changes now, blocking until they are persisted.
+     */
+    static void flushAppSwitcherData(Context context) {
+        Log.d(TAG, "flushAppSwitcherData");
+        getPersistence(context).flush();
     }
 
-    static void loadAppSwitcherData(Context context) {
+    /**
+     * Brings the run information up to date: restores the persisted model once per process,
+     * then folds in the usage events since the persisted watermark. The usage statistics of
+     * the last week are only read to seed a model that never ingested events.
+     */
+    private static void loadAppSwitcherData(Context context) {
 
         // Most Used
         Log.d(TAG, "loadAppSwitcherData ");
-        AppSwitcherManager.getInstance().resetState();
-        AppSwitcherManager.getInstance().setAllRunInfo(generateAppInfo(context));
-    }
-
-    private static List<ApplicationRunInformation> generateAppInfo(final Context context) {
+        ApplicationRunInfoManager manager = AppSwitcherManager.getInstance();
+        // cheap when unchanged, the preferences are cached in memory
+        manager.setFrecencyHalfLife(ApplicationRunInformation.toMilliSeconds(ApplicationRunInformation.getFrecencyHalfLifeInDays(context)));
+        manager.setMostUsedOrder(ApplicationRunInformation.isMostUsedByFrecency(context)
+                ? RankingPolicy.ORDER_BY_FRECENCY : RankingPolicy.ORDER_BY_COUNT);
+        if (!sRestored) {
+            manager.setAllRunInfo(ApplicationRunInformation.loadAppRunInfo(context, PREFS_APP_SWITCHER_APPS_DATA));
+            manager.setUsageEventsWatermark(ApplicationRunInformation.loadUsageEventsWatermark(context, PREFS_APP_SWITCHER_APPS_DATA));
+            sRestored = true;
+        }
 
         UsageStatsHelper helper = new UsageStatsHelper();
+        UsagePermissionState permission = UsagePermissionState.getInstance(context);
+        permission.setListener(sPermissionListener);
 
-        if (helper.hasPermission(context)) {
-            return helper.getUsageStats(context);
+        long now = System.currentTimeMillis();
+        boolean ingested = false;
+        if (permission.isGranted()) {
+            long watermark = manager.getUsageEventsWatermark();
+            try {
+                if (watermark == RunInfoJournal.NO_WATERMARK) {
+                    manager.setAllRunInfo(helper.getUsageStats(context, sLaunchCounter, now));
+                } else {
+                    helper.ingestUsageEvents(context, manager, sLaunchCounter, watermark, now);
+                }
+                ingested = true;
+            } catch (SecurityException e) {
+                // revoked before the app op callback told us, the watermark stays where it was
+                Log.w(TAG, "Usage stats access was refused", e);
+                permission.onAccessDenied();
+            }
         } else {
             Log.d(TAG, "Requesting permission to access usage stats");
 //            Intent intent = new Intent(Settings.ACTION_USAGE_ACCESS_SETTINGS);
 //            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 //            context.startActivity(intent);
         }
-        return new ArrayList<>();
 
+        // launches reported on any thread since the last refresh, after a seeding that would drop them
+        int launches = sLaunches.drainTo(manager);
+
+        if (ingested) {
+            manager.setUsageEventsWatermark(now);
+        } else if (launches > 0) {
+            manager.refreshRanking();
+        }
+        if (ingested || launches > 0) {
+            saveAppSwitcherData(context);
+        }
     }
 
-    public static void updateAppSwitcherData(Context context, ArrayList<String> packageNames) {
+    /**
+     * Brings the run information up to date and publishes the ranked lists to the widget
+     * list factories, which read them on the binder threads of the host. Called on the
+     * widget refresh thread; every change of the model holds the same lock.
+     *
+     * @return the ranking published
+     */
+    static synchronized RankingSnapshot refreshRenderedApps(Context context) {
+        loadAppSwitcherData(context);
+        sRendered = getInstance().getRankingSnapshot();
+        return sRendered;
+    }
+
+    /**
+     * Makes the ranked lists as long as the tallest widget in place shows them. The apps are
+     * only ranked again when that changes.
+     */
+    static synchronized void setListLimits(int recentLimit, int mostUsedLimit) {
+        ApplicationRunInfoManager manager = getInstance();
+        if (recentLimit != manager.getRecentAppsLimit() || mostUsedLimit != manager.getMostUsedAppsLimit()) {
+            manager.setUpLimits(mostUsedLimit, recentLimit);
+        }
+    }
+
+    /**
+     * @return the ranking last rendered, or null if this process did not rank the apps yet;
+     * does not wait for a refresh in progress, so it is safe on the binder threads of the host
+     */
+    static RankingSnapshot peekRenderedApps() {
+        return sRendered;
+    }
+
+    public static synchronized void updateAppSwitcherData(Context context, ArrayList<String> packageNames) {
         List<ApplicationRunInformation> allApps = AppSwitcherManager.getInstance().getAllAppRunInfo();
 
         List<ApplicationRunInformation> appsToRemove = new ArrayList<>();
@@ -155,9 +272,16 @@ class AppSwitcherManager {
             }
         }
 
+        if (appsToRemove.isEmpty()) {
+            return;
+        }
+
+        // save and render once for the whole batch
         for (ApplicationRunInformation appToRemove : appsToRemove) {
-            applicationRemoved(context, appToRemove.getComponentName());
+            AppSwitcherManager.getInstance().applicationRemoved(appToRemove.getComponentName());
         }
+        saveAppSwitcherData(context);
+        updateAppSwitcherWidgets(context);
     }
 
     public static void updateAppSwitcherWidgets(Context context) {
@@ -173,15 +297,20 @@ class AppSwitcherManager {
         }
     }
 
+    /**
+     * Records a launch from any thread without waiting for the model; the widget refresh
+     * folds it in. Only counted while the usage stats cannot be read: otherwise the ingestion
+     * of the usage events already counts the launch.
+     */
     public static void applicationStarted(Context context, ComponentName componentName) {
-        ApplicationRunInformation appRunInfo = ApplicationRunInfoManager
-                .generateApplicationRunInfo(componentName, false);
-        AppSwitcherManager.getInstance().applicationStarted(appRunInfo);
-        saveAppSwitcherData(context);
+        if (UsagePermissionState.getInstance(context).isGranted()) {
+            return;
+        }
+        sLaunches.applicationLaunched(ComponentPool.getInstance().intern(componentName), System.currentTimeMillis());
         updateAppSwitcherWidgets(context);
     }
 
-    public static void applicationRemoved(Context context, ComponentName componentName) {
+    public static synchronized void applicationRemoved(Context context, ComponentName componentName) {
         AppSwitcherManager.getInstance().applicationRemoved(componentName);
         saveAppSwitcherData(context);
         updateAppSwitcherWidgets(context);
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+import com.wearefairphone.myapps.R;
+import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.appinfo.ComponentPool;
+import com.wearefairphone.myapps.appinfo.RankingSnapshot;
+import com.wearefairphone.myapps.utils.IconCache;
+import com.wearefairphone.myapps.utils.LabelCache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Provides the rows of the last used and most used lists of the app switcher widget.
+ * <p>
+ * The host binds the rows lazily and asks for them again only after
+ * {@link android.appwidget.AppWidgetManager#notifyAppWidgetViewDataChanged(int[], int)},
+ * so a ranking change no longer resends the whole widget. Rows only carry a fill-in
+ * intent, merged by the host into the click template of their list.
+ * <p>
+ * Each widget binds its own factories, which show as many apps as fit in the widget.
+ */
+public class AppSwitcherService extends RemoteViewsService {
+    private static final String TAG = AppSwitcherService.class.getSimpleName();
+
+    static final String EXTRA_LIST = "com.wearefairphone.myapps.EXTRA_LIST";
+    static final int LIST_RECENT = 0;
+    static final int LIST_MOST_USED = 1;
+
+    // id of the all apps row, component ids are never negative
+    private static final long ALL_APPS_ITEM_ID = -1;
+
+    /**
+     * @return the intent binding the list of the widget to its factory, unique per widget and list
+     */
+    static Intent getAdapterIntent(Context context, int appWidgetId, int list) {
+        Intent intent = new Intent(context, AppSwitcherService.class);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        intent.putExtra(EXTRA_LIST, list);
+        // the extras are ignored when the host compares the intents, the data is not
+        intent.setData(Uri.parse(intent.toUri(Intent.URI_INTENT_SCHEME)));
+        return intent;
+    }
+
+    @Override
+    public RemoteViewsFactory onGetViewFactory(Intent intent) {
+        return new AppListFactory(getApplicationContext(),
+                intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID),
+                intent.getIntExtra(EXTRA_LIST, LIST_RECENT));
+    }
+
+    private static final class AppListFactory implements RemoteViewsFactory {
+        private final Context mContext;
+        private final int mAppWidgetId;
+        private final int mList;
+        // rows of the last data set change, read by the host on its binder threads
+        private List<ApplicationRunInformation> mApps = Collections.emptyList();
+        // rows of the previous process, shown until this one has ranked the apps
+        private RankingSnapshotFile mSnapshotFile;
+        // the rows of the snapshot file this list shows
+        private int[] mSnapshotRows = new int[0];
+        // packages of the widget host, granted read access to the icons of the rows
+        private String[] mHostPackages = new String[0];
+        // whether a row of this data set showed no icon for the allocation budget
+        private boolean mIconsSkipped;
+
+        AppListFactory(Context context, int appWidgetId, int list) {
+            mContext = context;
+            mAppWidgetId = appWidgetId;
+            mList = list;
+        }
+
+        @Override
+        public void onCreate() {
+        }
+
+        @Override
+        public synchronized void onDataSetChanged() {
+            updateHostPackages();
+
+            WidgetListSize size = WidgetListSize.of(mContext, AppWidgetManager.getInstance(mContext), mAppWidgetId);
+            IconCache.getInstance(mContext).startRefresh(mList == LIST_MOST_USED ? size.mostUsedLimit : size.recentLimit);
+            mIconsSkipped = false;
+
+            RankingSnapshot ranking = AppSwitcherManager.peekRenderedApps();
+            if (ranking == null) {
+                // nothing ranked yet in this process, show the last rendered rows right away
+                mSnapshotFile = RankingSnapshotFile.open(mContext);
+                if (mSnapshotFile != null) {
+                    Log.d(TAG, "List " + mList + " shows the ranking snapshot");
+                    mApps = Collections.emptyList();
+                    mSnapshotRows = getSnapshotRows(mSnapshotFile, size);
+                } else {
+                    Log.d(TAG, "List " + mList + " waits for the ranking");
+                    mApps = Collections.emptyList();
+                }
+                // the refresh ranks the apps and asks for the rows again, not on this binder thread
+                AppSwitcherWidget.getRefreshHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        AppSwitcherManager.updateAppSwitcherWidgets(mContext);
+                    }
+                });
+                return;
+            }
+
+            mSnapshotFile = null;
+            // the head of the shared lists, no ranking of its own
+            List<ApplicationRunInformation> mostUsed = WidgetListSize.head(ranking.getMostUsedApps(), size.mostUsedLimit);
+            mApps = mList == LIST_MOST_USED ? mostUsed
+                    : WidgetListSize.recentHead(ranking.getRecentApps(), mostUsed, size.recentLimit);
+            Log.d(TAG, "List " + mList + " of widget " + mAppWidgetId + " has " + mApps.size() + " apps");
+        }
+
+        @Override
+        public synchronized void onDestroy() {
+            // keep the labels loaded by the rows for the next process
+            AppSwitcherWidget.getRefreshHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    LabelCache.getInstance(mContext).save();
+                }
+            });
+            mApps = Collections.emptyList();
+            mSnapshotFile = null;
+        }
+
+        /**
+         * @return the rows of the snapshot file the list shows, as {@link #onDataSetChanged()} takes its apps
+         */
+        private int[] getSnapshotRows(RankingSnapshotFile file, WidgetListSize size) {
+            int mostUsedCount = Math.min(size.mostUsedLimit, file.getMostUsedCount());
+            if (mList == LIST_MOST_USED) {
+                int[] rows = new int[mostUsedCount];
+                for (int i = 0; i < mostUsedCount; i++) {
+                    rows[i] = file.getRow(true, i);
+                }
+                return rows;
+            }
+
+            int[] rows = new int[Math.min(size.recentLimit, file.getRecentCount())];
+            int count = 0;
+            for (int i = 0; i < file.getRecentCount() && count < rows.length; i++) {
+                int row = file.getRow(false, i);
+                if (!isMostUsedRow(file, file.getComponentName(row), mostUsedCount)) {
+                    rows[count++] = row;
+                }
+            }
+            return Arrays.copyOf(rows, count);
+        }
+
+        private static boolean isMostUsedRow(RankingSnapshotFile file, ComponentName component, int mostUsedCount) {
+            for (int i = 0; i < mostUsedCount; i++) {
+                if (file.getComponentName(file.getRow(true, i)).equals(component)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Remembers the packages of the host asking for the rows, the icon provider is not exported.
+         */
+        private void updateHostPackages() {
+            int callingUid = Binder.getCallingUid();
+            if (callingUid == Process.myUid()) {
+                return;
+            }
+            String[] packages = mContext.getPackageManager().getPackagesForUid(callingUid);
+            if (packages != null) {
+                mHostPackages = packages;
+            }
+        }
+
+        private void grantIconRead(Uri iconUri) {
+            for (String hostPackage : mHostPackages) {
+                mContext.grantUriPermission(hostPackage, iconUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            }
+        }
+
+        private int getAppCount() {
+            if (mSnapshotFile != null) {
+                return mSnapshotRows.length;
+            }
+            return mApps.size();
+        }
+
+        @Override
+        public synchronized int getCount() {
+            // the most used list ends with the all apps button
+            return mList == LIST_MOST_USED ? getAppCount() + 1 : getAppCount();
+        }
+
+        @Override
+        public synchronized RemoteViews getViewAt(int position) {
+            if (position >= getAppCount()) {
+                return mList == LIST_MOST_USED ? getAllAppsButton() : null;
+            }
+
+            if (mSnapshotFile != null) {
+                int row = mSnapshotRows[position];
+                return getAppView(mSnapshotFile.getComponentName(row), mSnapshotFile.getLabel(row),
+                        mSnapshotFile.getIconUri(row), mSnapshotFile.getCount(row));
+            }
+
+            ApplicationRunInformation info = mApps.get(position);
+            try {
+                // get app icon and label
+                Uri iconUri = IconCache.getInstance(mContext).getIconUri(info.getComponentName());
+                CharSequence appLabel = LabelCache.getInstance(mContext).getLabel(info.getComponentName());
+                return getAppView(info.getComponentName(), appLabel, iconUri, info.getCount());
+            } catch (NameNotFoundException e) {
+                // removed since the data set changed, the package broadcast refreshes the list;
+                // until then a row keeps the count and the rows in step
+                Log.w(TAG, "Could not find the correct package", e);
+                ComponentName component = info.getComponentName();
+                return getAppView(component, component.getPackageName(), null, info.getCount());
+            }
+        }
+
+        @Override
+        public RemoteViews getLoadingView() {
+            // the default loading view of the host
+            return null;
+        }
+
+        @Override
+        public int getViewTypeCount() {
+            return 1;
+        }
+
+        @Override
+        public synchronized long getItemId(int position) {
+            if (position >= getAppCount()) {
+                return ALL_APPS_ITEM_ID;
+            }
+            if (mSnapshotFile != null) {
+                ComponentName component = mSnapshotFile.getComponentName(mSnapshotRows[position]);
+                return ComponentPool.getInstance().intern(component);
+            }
+            return mApps.get(position).getComponentId();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        private RemoteViews getAppView(ComponentName component, CharSequence appLabel, Uri iconUri, int count) {
+            if (iconUri != null) {
+                grantIconRead(iconUri);
+            } else if (!mIconsSkipped && IconCache.getInstance(mContext).hasSkippedIcons()) {
+                // the next data set change renders the icon with the bitmaps of this one
+                mIconsSkipped = true;
+                AppSwitcherWidget.notifyListLater(mContext, mAppWidgetId,
+                        mList == LIST_MOST_USED ? R.id.mostUsedApps : R.id.lastUsedApps);
+            }
+            return mList == LIST_MOST_USED
+                    ? getMostUsedView(component, appLabel, iconUri, count)
+                    : getRecentView(component, appLabel, iconUri, count);
+        }
+
+        private RemoteViews getMostUsedView(ComponentName component, CharSequence appLabel, Uri iconUri, int count) {
+            // generate the mostUsed row
+            RemoteViews mostUsedRow = new RemoteViews(mContext.getPackageName(), R.layout.fp_most_used_item);
+
+            if (iconUri != null) {
+                mostUsedRow.setImageViewUri(R.id.most_app_logo, iconUri);
+            }
+
+            // debug String with app count
+            mostUsedRow.setTextViewText(R.id.mostUsedButton, AppSwitcherWidget.APP_SWITCHER_DEBUG_MODE ? count + "# " + appLabel : appLabel);
+
+            mostUsedRow.setOnClickFillInIntent(R.id.mostUsedRow, generateLaunchIntent(component, appLabel.toString()));
+
+            return mostUsedRow;
+        }
+
+        private RemoteViews getAllAppsButton() {
+            // generate the mostUsed row
+            RemoteViews allAppsButton = new RemoteViews(mContext.getPackageName(), R.layout.fp_most_used_item);
+
+            // the host loads the resource itself, no bitmap goes through the update
+            allAppsButton.setImageViewResource(R.id.most_app_logo, R.drawable.icon_allapps_white_widget);
+
+            allAppsButton.setTextViewText(R.id.mostUsedButton, mContext.getResources().getString(R.string.edge_swipe_all_apps).toUpperCase());
+
+            Intent launchIntent = new Intent();
+            launchIntent.setAction(AppSwitcherWidget.ACTION_APP_SWITCHER_LAUNCH_ALL_APPS);
+            allAppsButton.setOnClickFillInIntent(R.id.mostUsedRow, launchIntent);
+
+            return allAppsButton;
+        }
+
+        private RemoteViews getRecentView(ComponentName component, CharSequence appLabel, Uri iconUri, int count) {
+            RemoteViews recentRow = new RemoteViews(mContext.getPackageName(), R.layout.fp_last_used_item);
+
+            // debug String with app count
+            recentRow.setTextViewText(R.id.recentButton, AppSwitcherWidget.APP_SWITCHER_DEBUG_MODE ? count + "# " + appLabel : appLabel);
+            if (iconUri != null) {
+                recentRow.setImageViewUri(R.id.recent_app_logo, iconUri);
+            }
+
+            // the fill-in intent for this app
+            recentRow.setOnClickFillInIntent(R.id.recentRow, generateLaunchIntent(component, appLabel.toString()));
+
+            return recentRow;
+        }
+
+        private static Intent generateLaunchIntent(ComponentName component, String appLabel) {
+            // the template has no action, so the host takes the one of this intent
+            Intent i = new Intent();
+            i.setAction(AppSwitcherWidget.ACTION_APP_SWITCHER_LAUNCH_APP);
+
+            Bundle extras = new Bundle();
+            extras.putString(AppSwitcherWidget.EXTRA_LAUNCH_APP_NAME, appLabel);
+            extras.putString(AppSwitcherWidget.EXTRA_LAUNCH_APP_PACKAGE, component.getPackageName());
+            extras.putString(AppSwitcherWidget.EXTRA_LAUNCH_APP_CLASS_NAME, component.getClassName());
+
+            i.putExtras(extras);
+
+            return i;
+        }
+    }
+}
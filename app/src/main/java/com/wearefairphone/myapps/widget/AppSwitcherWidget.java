@@ -18,31 +18,47 @@ package com.wearefairphone.myapps.widget;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.View;
 import android.widget.RemoteViews;
 
-import com.wearefairphone.myapps.appinfo.ApplicationRunInfoManager;
 import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.appinfo.RankingSnapshot;
 import com.wearefairphone.myapps.R;
 import com.wearefairphone.myapps.activities.InvisibleDummyActivity;
+import com.wearefairphone.myapps.utils.LabelCache;
 import com.wearefairphone.myapps.utils.UsageStatsHelper;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class AppSwitcherWidget extends AppWidgetProvider {
     private static final String TAG = AppSwitcherWidget.class.getSimpleName();
-    private static final boolean APP_SWITCHER_DEBUG_MODE = false; //BuildConfig.DEBUG;
+    static final boolean APP_SWITCHER_DEBUG_MODE = false; //BuildConfig.DEBUG;
+    private static final int ROW_CLICK_REQUEST_CODE = 0;
+    // lets the host bind the rows of a list before asking for them again
+    private static final long ICON_RETRY_DELAY_MS = 1000;
+
+    // what each widget shows, by app widget id; a new process sends every widget in full once
+    private static final SparseArray<WidgetRenderState> sRenderStates = new SparseArray<>();
+
+    // widgets and broadcasts waiting for the refresh thread, guarded by sPendingIds
+    private static final SparseBooleanArray sPendingIds = new SparseBooleanArray();
+    private static final List<PendingResult> sPendingResults = new ArrayList<>();
+    private static boolean sRefreshQueued;
+    private static Handler sRefreshHandler;
+    // what the ranking snapshot file holds, only used by the refresh thread
+    private static WidgetRenderState sSnapshotState;
 
     // AppSwitcher settings
     public static final String ACTION_APP_SWITCHER_LAUNCH_APP = "com.fairphone.fplauncher3.ACTION_APP_SWITCHER_LAUNCH_APP";
@@ -68,6 +84,7 @@ public class AppSwitcherWidget extends AppWidgetProvider {
     public void onDisabled(Context context) {
         // Called once the last instance of your widget is removed from the
         // homescreen
+        AppSwitcherManager.flushAppSwitcherData(context);
         super.onDisabled(context);
     }
 
@@ -75,6 +92,11 @@ public class AppSwitcherWidget extends AppWidgetProvider {
     public void onDeleted(Context context, int[] appWidgetIds) {
         // Widget instance is removed from the homescreen
         Log.d(TAG, "onDeleted - " + Arrays.toString(appWidgetIds));
+        synchronized (sRenderStates) {
+            for (int appWidgetId : appWidgetIds) {
+                sRenderStates.remove(appWidgetId);
+            }
+        }
     }
 
     @Override
@@ -85,226 +107,60 @@ public class AppSwitcherWidget extends AppWidgetProvider {
         super.onAppWidgetOptionsChanged(context, appWidgetManager, appWidgetId, newOptions);
     }
 
-    private static RemoteViews updateUI(Context context) {
-        int code = 0;
-        // get the widgets
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.fp_app_switcher);
-
-        // clear the current data
-        widget.removeAllViews(R.id.lastUsedApps);
-        widget.removeAllViews(R.id.mostUsedApps);
-
-        // obtain the current data saved
-        AppSwitcherManager.loadAppSwitcherData(context);
-        ApplicationRunInfoManager instance = AppSwitcherManager.getInstance();
-
-        List<ApplicationRunInformation> mostRecent = instance.getRecentApps();
-        List<ApplicationRunInformation> mostUsed = instance.getMostUsedApps();
-
-        Log.d(TAG, "mostRecent lenght: " + mostRecent.size());
-        Log.d(TAG, "mostUsed lenght: " + mostUsed.size());
-
-        toggleMostAndLastUsedViewsVisibility(widget, mostRecent, mostUsed);
-
-        // update the recent apps
-        code = updateLastUsedAppsList(context, code, widget, mostRecent);
-
-        // Process the most used apps
-        updateMostUsedAppsList(context, code, widget, mostUsed);
-
-        return widget;
-    }
-
-    private static void updateMostUsedAppsList(Context context, int code, RemoteViews widget, List<ApplicationRunInformation> mostUsed) {
-        int slot_count = ApplicationRunInfoManager.MOST_APP_MAX_COUNT_LIMIT;
-        int addedViewCount = 0;
-
-        for (ApplicationRunInformation mostUsedInfo : mostUsed) {
-            RemoteViews view;
-            try {
-                view = getMostUsedView(context, mostUsedInfo, code);
-
-                if (view != null) {
-                    widget.addView(R.id.mostUsedApps, view);
-                    addedViewCount += 1;
-                } else {
-                    Log.e(TAG, "Got null view for most used app: " + mostUsedInfo.getComponentName().getPackageName());
-                }
-            } catch (NameNotFoundException e) {
-                // if no information is available log it and continue
-                Log.e(TAG, "Could not find the correct package", e);
-
-                continue;
-            }
-
-            // update the code
-            code++;
-        }
-
-        RemoteViews allAppsView = getAllAppsButton(context, code);
-
-        if (allAppsView != null) {
-            widget.addView(R.id.mostUsedApps, allAppsView);
-        }
-
-        for (int i = addedViewCount; i < slot_count; i++) {
-            RemoteViews emptyMostRow = new RemoteViews(context.getPackageName(), R.layout.fp_most_used_item);
-            emptyMostRow.setViewVisibility(R.id.mostUsedRow, View.INVISIBLE);
-            widget.addView(R.id.mostUsedApps, emptyMostRow);
+    /**
+     * Forgets what the widgets show, so the next update sends them in full. Called when the
+     * icons or labels of a package change under the same ranking.
+     */
+    static void invalidateRenderStates() {
+        synchronized (sRenderStates) {
+            sRenderStates.clear();
         }
     }
 
-    private static int updateLastUsedAppsList(Context context, int code, RemoteViews widget, List<ApplicationRunInformation> mostRecent) {
-        int slot_count = ApplicationRunInfoManager.RECENT_APP_MAX_COUNT_LIMIT;
-        int addedViewCount = 0;
-
-        for (ApplicationRunInformation appRunInfo : mostRecent) {
-            RemoteViews view;
-            try {
-                view = getRecentView(context, appRunInfo, code);
-
-                if (view != null) {
-                    widget.addView(R.id.lastUsedApps, view);
-                    addedViewCount += 1;
-                } else {
-                    Log.e(TAG, "Got null view for last used app: " + appRunInfo.getComponentName().getPackageName());
-                }
-            } catch (NameNotFoundException e) {
-                // if no information is available log it and continue
-                Log.e(TAG, "Could not find the correct package", e);
-
-                continue;
+    /**
+     * Asks the host for the rows of a list again after a short delay, so the icons left out
+     * for the allocation budget of a refresh get rendered by the next one.
+     */
+    static void notifyListLater(final Context context, final int appWidgetId, final int listViewId) {
+        getRefreshHandler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                AppWidgetManager.getInstance(context).notifyAppWidgetViewDataChanged(appWidgetId, listViewId);
             }
-
-            // update the code
-            code++;
-        }
-        for (int i = addedViewCount; i < slot_count; i++) {
-            RemoteViews emptyRecentRow = new RemoteViews(context.getPackageName(), R.layout.fp_last_used_item);
-            emptyRecentRow.setViewVisibility(R.id.recentRow, View.INVISIBLE);
-            widget.addView(R.id.lastUsedApps, emptyRecentRow);
-        }
-        return code;
+        }, ICON_RETRY_DELAY_MS);
     }
 
-    private static void toggleMostAndLastUsedViewsVisibility(RemoteViews widget, List<ApplicationRunInformation> mostRecent, List<ApplicationRunInformation> mostUsed) {
-        if (mostRecent.isEmpty() && mostUsed.isEmpty()) {
-            widget.setViewVisibility(R.id.mostUsedAppsOOBEDescription, View.VISIBLE);
-        } else {
-            widget.setViewVisibility(R.id.mostUsedAppsOOBEDescription, View.GONE);
-        }
-    }
-
-    private static RemoteViews getMostUsedView(Context context, ApplicationRunInformation info, int code) throws NameNotFoundException {
-        // generate the mostUsed row
-        RemoteViews mostUsedRow = new RemoteViews(context.getPackageName(), R.layout.fp_most_used_item);
-        PackageManager pm = context.getPackageManager();
-
-        // get app icon and label
-        Drawable icon = pm.getActivityIcon(info.getComponentName());
-        CharSequence appLabel = pm.getActivityInfo(info.getComponentName(), 0).loadLabel(pm);
-
-        // debug String with app count
-        @SuppressWarnings("UnusedAssignment") String fullAppLabel = info.getCount() + "# " + appLabel;
+    /**
+     * @param state what the widget shows, or null to leave the introduction as the layout has it
+     */
+    private static RemoteViews updateUI(Context context, int appWidgetId, WidgetRenderState state) {
+        // get the widgets
+        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.fp_app_switcher);
 
-        try {
-            Bitmap iconBitmap = ((BitmapDrawable) icon).getBitmap();
-
-            int iconSize = (int) context.getResources().getDimension(R.dimen.edit_favorites_icon_size);
-            int w = iconBitmap.getWidth();
-            int h = iconBitmap.getHeight();
-            int ws = w >= h ? iconSize : (int) (iconSize * (w / (double) h));
-            int hs = h >= w ? iconSize : (int) (iconSize * (h / (double) w));
-
-            iconBitmap = Bitmap.createScaledBitmap(iconBitmap, ws, hs, true);
-            mostUsedRow.setImageViewBitmap(R.id.most_app_logo, iconBitmap);
-        } catch (ClassCastException e) {
-            Log.e(TAG, "Failed to load bitmap drawable for " + fullAppLabel, e);
+        if (state != null) {
+            toggleMostAndLastUsedViewsVisibility(widget, state);
         }
 
-        mostUsedRow.setTextViewText(R.id.mostUsedButton, APP_SWITCHER_DEBUG_MODE ? fullAppLabel : appLabel);
+        // the rows only carry fill-in intents, one template launches every row
+        PendingIntent rowClickTemplate = PendingIntent.getBroadcast(context, ROW_CLICK_REQUEST_CODE, new Intent(), PendingIntent.FLAG_UPDATE_CURRENT);
 
-        Intent launchIntent = generateLaunchIntent(info, appLabel.toString());
+        // update the recent apps
+        widget.setRemoteAdapter(R.id.lastUsedApps, AppSwitcherService.getAdapterIntent(context, appWidgetId, AppSwitcherService.LIST_RECENT));
+        widget.setPendingIntentTemplate(R.id.lastUsedApps, rowClickTemplate);
 
-        PendingIntent clickRecentApps = PendingIntent.getBroadcast(context, code, launchIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-        mostUsedRow.setOnClickPendingIntent(R.id.mostUsedRow, clickRecentApps);
+        // Process the most used apps
+        widget.setRemoteAdapter(R.id.mostUsedApps, AppSwitcherService.getAdapterIntent(context, appWidgetId, AppSwitcherService.LIST_MOST_USED));
+        widget.setPendingIntentTemplate(R.id.mostUsedApps, rowClickTemplate);
 
-        return mostUsedRow;
+        return widget;
     }
 
-    private static RemoteViews getAllAppsButton(Context context, int code) {
-        // generate the mostUsed row
-        RemoteViews allAppsButton = new RemoteViews(context.getPackageName(), R.layout.fp_most_used_item);
-
-        Drawable draw;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            draw = context.getResources().getDrawable(R.drawable.icon_allapps_white_widget, null);
+    private static void toggleMostAndLastUsedViewsVisibility(RemoteViews widget, WidgetRenderState state) {
+        if (state.showsIntroduction) {
+            widget.setViewVisibility(R.id.mostUsedAppsOOBEDescription, View.VISIBLE);
         } else {
-            draw = context.getResources().getDrawable(R.drawable.icon_allapps_white_widget);
-        }
-        Bitmap icon = ((BitmapDrawable) draw).getBitmap();
-        allAppsButton.setImageViewBitmap(R.id.most_app_logo, icon);
-
-        allAppsButton.setTextViewText(R.id.mostUsedButton, context.getResources().getString(R.string.edge_swipe_all_apps).toUpperCase());
-
-        Intent launchIntent = new Intent();
-        launchIntent.setAction(ACTION_APP_SWITCHER_LAUNCH_ALL_APPS);
-
-        PendingIntent launchPendingIntent = PendingIntent.getBroadcast(context, code, launchIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-        allAppsButton.setOnClickPendingIntent(R.id.mostUsedRow, launchPendingIntent);
-
-        return allAppsButton;
-    }
-
-    private static Intent generateLaunchIntent(ApplicationRunInformation info, String appLabel) throws NameNotFoundException {
-        Intent i = new Intent();
-        i.setAction(ACTION_APP_SWITCHER_LAUNCH_APP);
-
-        Bundle extras = new Bundle();
-        extras.putString(EXTRA_LAUNCH_APP_NAME, appLabel);
-        extras.putString(EXTRA_LAUNCH_APP_PACKAGE, info.getComponentName().getPackageName());
-        extras.putString(EXTRA_LAUNCH_APP_CLASS_NAME, info.getComponentName().getClassName());
-
-        i.putExtras(extras);
-
-        return i;
-    }
-
-    private static RemoteViews getRecentView(Context context, ApplicationRunInformation info, int code) throws NameNotFoundException {
-        RemoteViews recentRow = new RemoteViews(context.getPackageName(), R.layout.fp_last_used_item);
-        PackageManager pm = context.getPackageManager();
-
-        // get application icon and label
-        Drawable icon = pm.getActivityIcon(info.getComponentName());
-        CharSequence appLabel = pm.getActivityInfo(info.getComponentName(), 0).loadLabel(pm);
-
-        // debug String with app count
-        @SuppressWarnings("UnusedAssignment") String fullAppLabel = info.getCount() + "# " + appLabel;
-
-
-        recentRow.setTextViewText(R.id.recentButton, APP_SWITCHER_DEBUG_MODE ? fullAppLabel : appLabel);
-        try {
-            Bitmap iconBitmap = ((BitmapDrawable) icon).getBitmap();
-
-            int iconSize = (int) context.getResources().getDimension(R.dimen.edit_favorites_icon_size);
-            int w = iconBitmap.getWidth();
-            int h = iconBitmap.getHeight();
-            int ws = w >= h ? iconSize : (int) (iconSize * (w / (double) h));
-            int hs = h >= w ? iconSize : (int) (iconSize * (h / (double) w));
-
-            iconBitmap = Bitmap.createScaledBitmap(iconBitmap, ws, hs, true);
-            recentRow.setImageViewBitmap(R.id.recent_app_logo, iconBitmap);
-        } catch (ClassCastException e) {
-            Log.e(TAG, "Failed to load bitmap drawable for " + fullAppLabel, e);
+            widget.setViewVisibility(R.id.mostUsedAppsOOBEDescription, View.GONE);
         }
-
-        // create the intent for this app
-        Intent launchIntent = generateLaunchIntent(info, appLabel.toString());
-
-        PendingIntent clickRecentApps = PendingIntent.getBroadcast(context, code, launchIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-        recentRow.setOnClickPendingIntent(R.id.recentRow, clickRecentApps);
-
-        return recentRow;
     }
 
     /*
@@ -330,10 +186,154 @@ public class AppSwitcherWidget extends AppWidgetProvider {
         // is being asked to provide RemoteViews for a set of AppWidgets.
         // Override this method to implement your own AppWidget functionality.
 
+        // a widget this process has not rendered yet gets its lists bound right away, without
+        // any query; the host shows the rows it holds or asks the list factories for them
+        synchronized (sRenderStates) {
+            for (int appWidgetId : appWidgetIds) {
+                if (sRenderStates.get(appWidgetId) == null) {
+                    appWidgetManager.updateAppWidget(appWidgetId, updateUI(context, appWidgetId, null));
+                }
+            }
+        }
+
+        // null when called outside of a broadcast
+        requestRefresh(context, appWidgetIds, goAsync());
+    }
+
+    /**
+     * Queues a refresh of the widgets on the refresh thread. Widgets requested while a
+     * refresh is queued are rendered by it, and the broadcasts it covers finish with it.
+     */
+    private static void requestRefresh(final Context context, int[] appWidgetIds, PendingResult result) {
+        synchronized (sPendingIds) {
+            for (int appWidgetId : appWidgetIds) {
+                sPendingIds.put(appWidgetId, true);
+            }
+            if (result != null) {
+                sPendingResults.add(result);
+            }
+            if (sRefreshQueued) {
+                return;
+            }
+            sRefreshQueued = true;
+        }
+
+        getRefreshHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                refresh(context.getApplicationContext());
+            }
+        });
+    }
+
+    /**
+     * @return the handler of the refresh thread, which does every query and change of the model
+     */
+    static synchronized Handler getRefreshHandler() {
+        if (sRefreshHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sRefreshHandler = new Handler(thread.getLooper());
+        }
+        return sRefreshHandler;
+    }
+
+    private static void refresh(Context context) {
+        int[] appWidgetIds;
+        List<PendingResult> results;
+        synchronized (sPendingIds) {
+            appWidgetIds = new int[sPendingIds.size()];
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                appWidgetIds[i] = sPendingIds.keyAt(i);
+            }
+            sPendingIds.clear();
+            results = new ArrayList<>(sPendingResults);
+            sPendingResults.clear();
+            sRefreshQueued = false;
+        }
+
+        try {
+            render(context, AppWidgetManager.getInstance(context), appWidgetIds);
+        } finally {
+            for (PendingResult result : results) {
+                result.finish();
+            }
+        }
+    }
+
+    /**
+     * Computes the ranking and sends each widget what changed since it was last rendered.
+     * Runs on the refresh thread: it queries the usage stats and the package manager.
+     */
+    private static void render(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        // each widget shows the head of the same lists, ranked as long as the tallest one in place needs
+        int[] placedIds = appWidgetManager.getAppWidgetIds(new ComponentName(context, AppSwitcherWidget.class));
+        int recentLimit = 0;
+        int mostUsedLimit = 0;
+        for (int appWidgetId : placedIds) {
+            WidgetListSize size = WidgetListSize.of(context, appWidgetManager, appWidgetId);
+            recentLimit = Math.max(recentLimit, size.recentLimit);
+            mostUsedLimit = Math.max(mostUsedLimit, size.mostUsedLimit);
+        }
+        if (placedIds.length > 0) {
+            AppSwitcherManager.setListLimits(recentLimit, mostUsedLimit);
+        }
+
+        WidgetListSize[] sizes = new WidgetListSize[appWidgetIds.length];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            sizes[i] = WidgetListSize.of(context, appWidgetManager, appWidgetIds[i]);
+        }
+
+        // obtain the current data saved, the list factories render the rows from it
+        RankingSnapshot ranking = AppSwitcherManager.refreshRenderedApps(context);
+        List<ApplicationRunInformation> mostRecent = ranking.getRecentApps();
+        List<ApplicationRunInformation> mostUsed = ranking.getMostUsedApps();
 
-        // update the widget data
-        appWidgetManager.updateAppWidget(appWidgetIds, null);
-        appWidgetManager.updateAppWidget(appWidgetIds, updateUI(context));
+        Log.d(TAG, "mostRecent lenght: " + mostRecent.size());
+        Log.d(TAG, "mostUsed lenght: " + mostUsed.size());
+
+        // keep the rows for the first render of the next process, each widget reads its head
+        WidgetRenderState snapshotState = WidgetRenderState.of(context, mostRecent, mostUsed);
+        if (sSnapshotState == null || sSnapshotState.recentApps != snapshotState.recentApps
+                || sSnapshotState.mostUsedApps != snapshotState.mostUsedApps) {
+            RankingSnapshotFile.write(context, mostRecent, mostUsed);
+            sSnapshotState = snapshotState;
+        }
+        // the labels loaded by this render and the rows of the previous one, written only if any is new
+        LabelCache.getInstance(context).save();
+
+        synchronized (sRenderStates) {
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                int appWidgetId = appWidgetIds[i];
+                List<ApplicationRunInformation> mostUsedHead = WidgetListSize.head(mostUsed, sizes[i].mostUsedLimit);
+                WidgetRenderState state = WidgetRenderState.of(context,
+                        WidgetListSize.recentHead(mostRecent, mostUsedHead, sizes[i].recentLimit), mostUsedHead);
+                WidgetRenderState rendered = sRenderStates.get(appWidgetId);
+                sRenderStates.put(appWidgetId, state);
+
+                if (rendered == null) {
+                    // first update of the widget in this process, send everything
+                    appWidgetManager.updateAppWidget(appWidgetId, updateUI(context, appWidgetId, state));
+                    // the host may still hold rows of an earlier process for the same adapters
+                    appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.lastUsedApps);
+                    appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.mostUsedApps);
+                    continue;
+                }
+
+                if (rendered.showsIntroduction != state.showsIntroduction) {
+                    RemoteViews introduction = new RemoteViews(context.getPackageName(), R.layout.fp_app_switcher);
+                    toggleMostAndLastUsedViewsVisibility(introduction, state);
+                    appWidgetManager.partiallyUpdateAppWidget(appWidgetId, introduction);
+                }
+                // only a changed list asks the host for its rows again
+                if (rendered.recentApps != state.recentApps) {
+                    appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.lastUsedApps);
+                }
+                if (rendered.mostUsedApps != state.mostUsedApps) {
+                    appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.mostUsedApps);
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.widget;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import com.wearefairphone.myapps.appinfo.LaunchableIndex;
+import com.wearefairphone.myapps.utils.IconCache;
+import com.wearefairphone.myapps.utils.LabelCache;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the {@link LaunchableIndex}, the icon and label caches and the app switcher data
+ * in sync with installed packages.
+ * <p>
+ * The work runs on the widget refresh thread: it touches files and the package manager, and
+ * waits for the model a refresh may be holding, none of which belongs on the main thread.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+    private static final String TAG = PackageChangeReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        final String action = intent.getAction();
+        if (data == null || action == null) {
+            return;
+        }
+
+        final String packageName = data.getSchemeSpecificPart();
+        final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+        Log.d(TAG, action + " - " + packageName);
+
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        AppSwitcherWidget.getRefreshHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    packageChanged(appContext, action, packageName, replacing);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private static void packageChanged(Context context, String action, String packageName, boolean replacing) {
+
+        LaunchableIndex index = LaunchableIndex.getInstance(context);
+        switch (action) {
+            case Intent.ACTION_PACKAGE_REMOVED:
+                IconCache.getInstance(context).invalidate(packageName);
+                LabelCache.getInstance(context).invalidate(packageName);
+                // an update removes the package first, ACTION_PACKAGE_REPLACED follows
+                if (!replacing) {
+                    index.packageRemoved(packageName);
+
+                    ArrayList<String> packageNames = new ArrayList<>(1);
+                    packageNames.add(packageName);
+                    AppSwitcherManager.updateAppSwitcherData(context, packageNames);
+                }
+                break;
+            case Intent.ACTION_PACKAGE_ADDED:
+                if (!replacing) {
+                    index.packageChanged(packageName);
+                }
+                break;
+            case Intent.ACTION_PACKAGE_REPLACED:
+            case Intent.ACTION_PACKAGE_CHANGED:
+                IconCache.getInstance(context).invalidate(packageName);
+                LabelCache.getInstance(context).invalidate(packageName);
+                // the ranking may stay the same while the icon changed
+                AppSwitcherWidget.invalidateRenderStates();
+                index.packageChanged(packageName);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.widget;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.utils.IconCache;
+import com.wearefairphone.myapps.utils.LabelCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows last rendered by the widget lists, in a fixed layout read in place through a
+ * memory mapped buffer. A new process shows them while it restores the run information and
+ * ingests the usage events.
+ * <p>
+ * Layout, big endian: a header of magic, version, recent row count, most used row count and
+ * the byte offset of the string area; then one fixed size record per row, the recent rows
+ * first, holding the run count and the char offset and length of the package name, class
+ * name, label and icon URI; then the strings in UTF-16.
+ */
+final class RankingSnapshotFile {
+    private static final String TAG = RankingSnapshotFile.class.getSimpleName();
+
+    private static final String FILE_NAME = "ranking_snapshot";
+    // distinct from the run information snapshot, so neither file is ever read as the other
+    private static final int MAGIC = 0x4D415752; // MAWR
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int OFFSET_RECENT_COUNT = 8;
+    private static final int OFFSET_MOST_USED_COUNT = 12;
+    private static final int OFFSET_STRINGS = 16;
+
+    private static final int FIELD_PACKAGE = 0;
+    private static final int FIELD_CLASS = 1;
+    private static final int FIELD_LABEL = 2;
+    private static final int FIELD_ICON = 3;
+    private static final int FIELD_COUNT = 4;
+    // run count, then offset and length of each string
+    private static final int ROW_SIZE = 4 + FIELD_COUNT * 2 * 4;
+
+    private final ByteBuffer mBuffer;
+    private final int mRecentCount;
+    private final int mMostUsedCount;
+    private final int mStrings;
+
+    private RankingSnapshotFile(ByteBuffer buffer, int recentCount, int mostUsedCount, int strings) {
+        mBuffer = buffer;
+        mRecentCount = recentCount;
+        mMostUsedCount = mostUsedCount;
+        mStrings = strings;
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Maps the snapshot and checks its bounds, nothing else is read until a row is asked for.
+     *
+     * @return the snapshot, or null if there is none or it cannot be used
+     */
+    static RankingSnapshotFile open(Context context) {
+        AtomicFile file = getFile(context);
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = file.openRead();
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return check(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to map the ranking snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    // the mapping stays valid
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close the ranking snapshot", e);
+                }
+            }
+        }
+    }
+
+    private static RankingSnapshotFile check(ByteBuffer buffer) {
+        int size = buffer.limit();
+        if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            Log.w(TAG, "Ignoring ranking snapshot with unknown format");
+            return null;
+        }
+
+        int recentCount = buffer.getInt(OFFSET_RECENT_COUNT);
+        int mostUsedCount = buffer.getInt(OFFSET_MOST_USED_COUNT);
+        int strings = buffer.getInt(OFFSET_STRINGS);
+        long rows = (long) recentCount + mostUsedCount;
+        if (recentCount < 0 || mostUsedCount < 0 || strings != HEADER_SIZE + rows * ROW_SIZE || strings > size) {
+            Log.w(TAG, "Ignoring corrupt ranking snapshot");
+            return null;
+        }
+
+        int chars = (size - strings) / 2;
+        for (int row = 0; row < (int) rows; row++) {
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                int position = getFieldPosition(row, field);
+                int offset = buffer.getInt(position);
+                int length = buffer.getInt(position + 4);
+                if (offset < 0 || length < 0 || offset > chars - length) {
+                    Log.w(TAG, "Ignoring corrupt ranking snapshot");
+                    return null;
+                }
+            }
+        }
+        return new RankingSnapshotFile(buffer, recentCount, mostUsedCount, strings);
+    }
+
+    /**
+     * Writes the rows about to be rendered, with their labels and icons.
+     */
+    static void write(Context context, List<ApplicationRunInformation> recentApps, List<ApplicationRunInformation> mostUsedApps) {
+        IconCache.getInstance(context).startRefresh(recentApps.size() + mostUsedApps.size());
+        List<Row> recentRows = getRows(context, recentApps);
+        List<Row> mostUsedRows = getRows(context, mostUsedApps);
+
+        AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            DataOutputStream stringsOut = new DataOutputStream(strings);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int rows = recentRows.size() + mostUsedRows.size();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(recentRows.size());
+            out.writeInt(mostUsedRows.size());
+            out.writeInt(HEADER_SIZE + rows * ROW_SIZE);
+            writeRows(out, stringsOut, recentRows);
+            writeRows(out, stringsOut, mostUsedRows);
+            stringsOut.flush();
+            strings.writeTo(out);
+            out.flush();
+
+            stream = file.startWrite();
+            bytes.writeTo(stream);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the ranking snapshot", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private static final class Row {
+        final int count;
+        final String[] strings;
+
+        Row(int count, String[] strings) {
+            this.count = count;
+            this.strings = strings;
+        }
+    }
+
+    // skips the activities that are gone
+    private static List<Row> getRows(Context context, List<ApplicationRunInformation> apps) {
+        List<Row> rows = new ArrayList<>(apps.size());
+        for (ApplicationRunInformation app : apps) {
+            ComponentName component = app.getComponentName();
+            try {
+                CharSequence label = LabelCache.getInstance(context).getLabel(component);
+                Uri iconUri = IconCache.getInstance(context).getIconUri(component);
+                rows.add(new Row(app.getCount(), new String[]{
+                        component.getPackageName(),
+                        component.getClassName(),
+                        label.toString(),
+                        iconUri != null ? iconUri.toString() : ""
+                }));
+            } catch (NameNotFoundException e) {
+                Log.d(TAG, "Not keeping " + component + " in the ranking snapshot");
+            }
+        }
+        return rows;
+    }
+
+    private static void writeRows(DataOutputStream out, DataOutputStream stringsOut, List<Row> rows) throws IOException {
+        for (Row row : rows) {
+            out.writeInt(row.count);
+            for (String string : row.strings) {
+                out.writeInt(stringsOut.size() / 2);
+                out.writeInt(string.length());
+                stringsOut.writeChars(string);
+            }
+        }
+    }
+
+    private static int getFieldPosition(int row, int field) {
+        return HEADER_SIZE + row * ROW_SIZE + 4 + field * 2 * 4;
+    }
+
+    int getRecentCount() {
+        return mRecentCount;
+    }
+
+    int getMostUsedCount() {
+        return mMostUsedCount;
+    }
+
+    /**
+     * @return the row of the position in the list, the most used rows follow the recent ones
+     */
+    int getRow(boolean mostUsed, int position) {
+        return mostUsed ? mRecentCount + position : position;
+    }
+
+    int getCount(int row) {
+        return mBuffer.getInt(HEADER_SIZE + row * ROW_SIZE);
+    }
+
+    ComponentName getComponentName(int row) {
+        return new ComponentName(getString(row, FIELD_PACKAGE), getString(row, FIELD_CLASS));
+    }
+
+    String getLabel(int row) {
+        return getString(row, FIELD_LABEL);
+    }
+
+    /**
+     * @return the icon URI, or null if the icon could not be rendered
+     */
+    Uri getIconUri(int row) {
+        String uri = getString(row, FIELD_ICON);
+        return uri.isEmpty() ? null : Uri.parse(uri);
+    }
+
+    private String getString(int row, int field) {
+        int position = getFieldPosition(row, field);
+        int offset = mBuffer.getInt(position);
+        int length = mBuffer.getInt(position + 4);
+
+        // absolute reads, the buffer is shared by the binder threads of the host
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(mStrings + (offset + i) * 2);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Bundle;
+
+import com.wearefairphone.myapps.R;
+import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.appinfo.ApplicationRunInfoManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How many apps each list of a widget shows, from the size its host reports. Every widget
+ * reads the first entries of the same ranked lists, so widgets of different sizes never
+ * rank the apps again. The recent list ranks the most used apps too: each widget only leaves
+ * out the ones its own most used list shows.
+ */
+final class WidgetListSize {
+    // keeps a very tall widget from ranking the whole model
+    static final int MAX_LIMIT = 16;
+
+    // before the host reports a size
+    static final WidgetListSize DEFAULT = new WidgetListSize(
+            ApplicationRunInfoManager.RECENT_APP_MAX_COUNT_LIMIT, ApplicationRunInfoManager.MOST_APP_MAX_COUNT_LIMIT);
+
+    final int recentLimit;
+    final int mostUsedLimit;
+
+    private WidgetListSize(int recentLimit, int mostUsedLimit) {
+        this.recentLimit = recentLimit;
+        this.mostUsedLimit = mostUsedLimit;
+    }
+
+    static WidgetListSize of(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        Bundle options = appWidgetManager.getAppWidgetOptions(appWidgetId);
+        // the height in portrait, in dp
+        int height = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT) : 0;
+        if (height <= 0) {
+            return DEFAULT;
+        }
+
+        Resources resources = context.getResources();
+        float density = resources.getDisplayMetrics().density;
+        float listHeight = height - resources.getDimension(R.dimen.app_switcher_list_top) / density;
+        int recentRows = (int) (listHeight * density / resources.getDimension(R.dimen.app_switcher_recent_row_height));
+        int mostUsedRows = (int) (listHeight * density / resources.getDimension(R.dimen.app_switcher_most_used_row_height));
+
+        // the most used list ends with the all apps button
+        return new WidgetListSize(clamp(recentRows), clamp(mostUsedRows - 1));
+    }
+
+    private static int clamp(int limit) {
+        return Math.max(1, Math.min(MAX_LIMIT, limit));
+    }
+
+    /**
+     * @return the first apps of the list this widget shows
+     */
+    static List<ApplicationRunInformation> head(List<ApplicationRunInformation> apps, int limit) {
+        return apps.size() > limit ? apps.subList(0, limit) : apps;
+    }
+
+    /**
+     * @return the first recent apps this widget shows, without the most used apps it shows
+     */
+    static List<ApplicationRunInformation> recentHead(List<ApplicationRunInformation> recentApps,
+                                                      List<ApplicationRunInformation> mostUsedHead, int limit) {
+        List<ApplicationRunInformation> apps = new ArrayList<>(limit);
+        for (int i = 0; i < recentApps.size() && apps.size() < limit; i++) {
+            ApplicationRunInformation app = recentApps.get(i);
+            if (!contains(mostUsedHead, app.getComponentId())) {
+                apps.add(app);
+            }
+        }
+        return apps;
+    }
+
+    // a handful of entries, a scan beats any lookup structure
+    private static boolean contains(List<ApplicationRunInformation> apps, int componentId) {
+        for (ApplicationRunInformation app : apps) {
+            if (app.getComponentId() == componentId) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Fairphone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wearefairphone.myapps.widget;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import com.wearefairphone.myapps.appinfo.ApplicationRunInformation;
+import com.wearefairphone.myapps.utils.LabelCache;
+
+import java.util.List;
+
+/**
+ * What a widget shows: a fingerprint of each list over the ranked components, their labels
+ * and flags, and whether the introduction text is visible. Comparing the state rendered in
+ * a widget with the current one tells which parts of the widget have to be sent again.
+ */
+final class WidgetRenderState {
+    // 64 bit FNV-1a
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // mixed in for a row whose activity is gone, it renders nothing
+    private static final int MISSING_LABEL = 0;
+
+    final long recentApps;
+    final long mostUsedApps;
+    final boolean showsIntroduction;
+
+    private WidgetRenderState(long recentApps, long mostUsedApps, boolean showsIntroduction) {
+        this.recentApps = recentApps;
+        this.mostUsedApps = mostUsedApps;
+        this.showsIntroduction = showsIntroduction;
+    }
+
+    static WidgetRenderState of(Context context, List<ApplicationRunInformation> recentApps, List<ApplicationRunInformation> mostUsedApps) {
+        LabelCache labels = LabelCache.getInstance(context);
+        return new WidgetRenderState(fingerprint(labels, recentApps), fingerprint(labels, mostUsedApps),
+                recentApps.isEmpty() && mostUsedApps.isEmpty());
+    }
+
+    private static long fingerprint(LabelCache labels, List<ApplicationRunInformation> apps) {
+        long hash = mix(FNV_OFFSET_BASIS, apps.size());
+        for (ApplicationRunInformation app : apps) {
+            hash = mix(hash, app.getComponentId());
+            hash = mix(hash, getFlags(app));
+            hash = mix(hash, getLabelHash(labels, app));
+            if (AppSwitcherWidget.APP_SWITCHER_DEBUG_MODE) {
+                // the debug rows show the count
+                hash = mix(hash, app.getCount());
+            }
+        }
+        return hash;
+    }
+
+    private static int getFlags(ApplicationRunInformation app) {
+        return (app.isNewApp() ? 1 : 0) | (app.isUpdatedApp() ? 2 : 0) | (app.isPinnedApp() ? 4 : 0);
+    }
+
+    private static int getLabelHash(LabelCache labels, ApplicationRunInformation app) {
+        try {
+            return labels.getLabel(app.getComponentName()).toString().hashCode();
+        } catch (NameNotFoundException e) {
+            return MISSING_LABEL;
+        }
+    }
+
+    private static long mix(long hash, int value) {
+        for (int shift = 0; shift < Integer.SIZE; shift += Byte.SIZE) {
+            hash ^= (value >>> shift) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}